@@ -0,0 +1,424 @@
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Approximate answers to probability queries by sampling, for networks whose exact elimination does not fit the
+ * memory budget:
+ *   engine=lw      likelihood weighting: the variables are drawn in topological order with the evidence clamped,
+ *                  and every sample is weighted by the likelihood of the evidence
+ *   engine=gibbs   Gibbs sampling: a Markov chain redraws every unobserved variable from its distribution given its
+ *                  Markov blanket, and the query's conditional probability is averaged over the sweeps
+ *                  (Rao-Blackwellized); the chain assumes every state with the evidence can reach every other one
+ * Only the query variable, the evidence and their ancestors are sampled, as the other variables sum out to 1.
+ * The work is split over one worker per thread of the common ForkJoinPool. Every worker owns a SplittableRandom
+ * (split from the query's seed, so a sample budget gives reproducible answers on a given pool size) and its own
+ * accumulators, which are only added up at the end. A worker stops once its share of the sample budget is drawn or
+ * the time budget is spent.
+ */
+public class ApproximateInference {
+    // Samples (Gibbs: sweeps) drawn when a query gives neither 'samples=' nor 'time=':
+    public static final long DEFAULT_SAMPLES = 100000;
+
+    // Gibbs sweeps discarded at the start of every chain, and sweeps per batch of the batch means:
+    private static final int BURN_IN = 1000;
+    private static final int BATCH = 256;
+
+    // Samples between two looks at the clock:
+    private static final int CLOCK_INTERVAL = 256;
+
+    private static final double Z_95 = 1.959963984540054;
+
+    /*
+     * An estimate of the query's probability with a 95% confidence interval.
+     */
+    public static class Estimate {
+        public final double probability;
+        public final double lower;
+        public final double upper;
+        public final long samples;
+
+        Estimate(double probability, double half_width, long samples) {
+            this.probability = probability;
+            this.lower = Double.isNaN(half_width) ? 0 : Math.max(0, probability - half_width);
+            this.upper = Double.isNaN(half_width) ? 1 : Math.min(1, probability + half_width);
+            this.samples = samples;
+        }
+    }
+
+    /*
+     * Estimates P(query | evidence) with the query's sampling engine and budget.
+     */
+    public static Estimate calculateCPT(CompiledNetwork network, CompiledQuery query, MathematicalOperationsCounter counter) {
+        // An observed query variable has a certain outcome:
+        if (query.evidence[query.variable] != -1)
+            return new Estimate(query.evidence[query.variable] == query.outcome ? 1 : 0, 0, 0);
+
+        QueryOptions options = query.options;
+        boolean gibbs = options.engine.equals(QueryOptions.ENGINE_GIBBS);
+        long budget = options.samples > 0 ? options.samples : options.time_millis > 0 ? Long.MAX_VALUE : DEFAULT_SAMPLES;
+        long deadline = options.time_millis > 0 ? System.nanoTime() + options.time_millis * 1000000 : Long.MAX_VALUE;
+
+        Sampler sampler = new Sampler(network, query);
+        int workers = (int) Math.min(budget, Math.max(1, ForkJoinPool.getCommonPoolParallelism()));
+        SplittableRandom random = new SplittableRandom(options.seed);
+        List<Worker> tasks = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            long share = budget == Long.MAX_VALUE ? budget : budget / workers + (i < budget % workers ? 1 : 0);
+            tasks.add(gibbs ? new GibbsWorker(sampler, share, deadline, random.split())
+                            : new WeightingWorker(sampler, share, deadline, random.split()));
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        // The accumulators of the workers are only added up here:
+        Worker total = tasks.get(0);
+        for (int i = 1; i < tasks.size(); i++) {
+            total.add(tasks.get(i));
+        }
+        if (counter.profile != null)
+            counter.profile.samples += total.samples;
+        return total.estimate();
+    }
+
+    /*
+     * The sampled part of the network, in primitive arrays shared (read-only) by all workers of a query.
+     */
+    private static final class Sampler {
+        final int[] evidence;
+        final int query;
+        final int outcome;
+        final int size;
+        final int[][] parents;
+        final int[][] cpt_strides;
+        final DoubleBuffer[] tables;
+        final int[] cardinalities;
+        final int max_cardinality;
+
+        // The ancestral variables in topological order, the unobserved ones among them, and the children of every
+        // variable inside the ancestral set:
+        final int[] order;
+        final int[] free;
+        final int[][] children;
+
+        Sampler(CompiledNetwork network, CompiledQuery query) {
+            this.evidence = query.evidence;
+            this.query = query.variable;
+            this.outcome = query.outcome;
+            this.size = network.size();
+            this.parents = network.parents;
+            this.cpt_strides = network.cpt_strides;
+            this.tables = network.tables;
+            this.cardinalities = network.cardinalities;
+
+            boolean[] ancestral = NetworkPruner.ancestral(network, query.variable, query.evidence);
+
+            // Topological order (Kahn): a variable follows all of its parents, which are ancestral as well
+            int[] missing_parents = new int[this.size];
+            int[] queue = new int[this.size];
+            int tail = 0;
+            int max_cardinality = 1;
+            for (int id = 0; id < this.size; id++) {
+                if (!ancestral[id])
+                    continue;
+                missing_parents[id] = network.parents[id].length;
+                if (missing_parents[id] == 0)
+                    queue[tail++] = id;
+                max_cardinality = Math.max(max_cardinality, network.cardinalities[id]);
+            }
+            for (int head = 0; head < tail; head++) {
+                for (int child: network.children[queue[head]]) {
+                    if (ancestral[child] && --missing_parents[child] == 0)
+                        queue[tail++] = child;
+                }
+            }
+            this.order = Arrays.copyOf(queue, tail);
+            this.max_cardinality = max_cardinality;
+
+            int free_count = 0;
+            for (int id: this.order) {
+                if (this.evidence[id] == -1)
+                    free_count++;
+            }
+            this.free = new int[free_count];
+            free_count = 0;
+            for (int id: this.order) {
+                if (this.evidence[id] == -1)
+                    this.free[free_count++] = id;
+            }
+
+            this.children = new int[this.size][];
+            for (int id: this.order) {
+                int count = 0;
+                for (int child: network.children[id]) {
+                    if (ancestral[child])
+                        count++;
+                }
+                this.children[id] = new int[count];
+                count = 0;
+                for (int child: network.children[id]) {
+                    if (ancestral[child])
+                        this.children[id][count++] = child;
+                }
+            }
+        }
+
+        // Offset of the row of a variable's CPT selected by its parents' outcomes in 'state':
+        int row(int id, int[] state) {
+            int[] variable_parents = this.parents[id];
+            int[] strides = this.cpt_strides[id];
+            int offset = 0;
+            for (int i = 0; i < variable_parents.length; i++) {
+                offset += state[variable_parents[i]] * strides[i];
+            }
+            return offset;
+        }
+
+        // P(variable = its outcome in 'state' | its parents' outcomes in 'state'):
+        double probability(int id, int[] state) {
+            return this.tables[id].get(row(id, state) + state[id] * this.cpt_strides[id][this.parents[id].length]);
+        }
+
+        /*
+         * Draws every ancestral variable in topological order with the evidence clamped, and returns the likelihood
+         * of the evidence (the sample's weight).
+         */
+        double forward(int[] state, SplittableRandom random) {
+            double weight = 1;
+            for (int id: this.order) {
+                DoubleBuffer table = this.tables[id];
+                int row = row(id, state);
+                int stride = this.cpt_strides[id][this.parents[id].length];
+
+                if (this.evidence[id] != -1) {
+                    state[id] = this.evidence[id];
+                    weight *= table.get(row + state[id] * stride);
+                } else {
+                    // Inverse transform over the row (the last outcome takes whatever rounding leaves):
+                    double u = random.nextDouble();
+                    int outcome = 0;
+                    int last = this.cardinalities[id] - 1;
+                    while (outcome < last && (u -= table.get(row + outcome * stride)) >= 0) {
+                        outcome++;
+                    }
+                    state[id] = outcome;
+                }
+            }
+            return weight;
+        }
+    }
+
+    /*
+     * Draws samples on one thread into its own accumulators.
+     */
+    private abstract static class Worker extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Sampler sampler;
+        final long budget;
+        final long deadline;
+        final SplittableRandom random;
+        final int[] state;
+        long samples;
+
+        Worker(Sampler sampler, long budget, long deadline, SplittableRandom random) {
+            this.sampler = sampler;
+            this.budget = budget;
+            this.deadline = deadline;
+            this.random = random;
+            this.state = new int[sampler.size];
+        }
+
+        // Whether the worker must stop before drawing sample number 'n' (the clock is read every CLOCK_INTERVAL samples):
+        boolean done(long n) {
+            return n >= this.budget || (n % CLOCK_INTERVAL == 0 && expired());
+        }
+
+        boolean expired() {
+            return this.deadline != Long.MAX_VALUE && System.nanoTime() > this.deadline;
+        }
+
+        abstract void add(Worker other);
+
+        abstract Estimate estimate();
+    }
+
+    /*
+     * Likelihood weighting: the estimate is the ratio sum(w * [Q=q]) / sum(w), and its variance comes from the delta
+     * method, sum(w^2 * ([Q=q] - p)^2) / sum(w)^2, expanded into sums that can be accumulated before p is known.
+     */
+    private static final class WeightingWorker extends Worker {
+        private static final long serialVersionUID = 1L;
+
+        double weights;               // sum(w)
+        double matching_weights;      // sum(w * [Q=q])
+        double squared_weights;       // sum(w^2)
+        double matching_squared;      // sum(w^2 * [Q=q])
+
+        WeightingWorker(Sampler sampler, long budget, long deadline, SplittableRandom random) {
+            super(sampler, budget, deadline, random);
+        }
+
+        protected void compute() {
+            Sampler sampler = this.sampler;
+            long n = 0;
+            while (!done(n)) {
+                double weight = sampler.forward(this.state, this.random);
+                double squared = weight * weight;
+                this.weights += weight;
+                this.squared_weights += squared;
+                if (this.state[sampler.query] == sampler.outcome) {
+                    this.matching_weights += weight;
+                    this.matching_squared += squared;
+                }
+                n++;
+            }
+            this.samples = n;
+        }
+
+        void add(Worker other) {
+            WeightingWorker worker = (WeightingWorker) other;
+            this.weights += worker.weights;
+            this.matching_weights += worker.matching_weights;
+            this.squared_weights += worker.squared_weights;
+            this.matching_squared += worker.matching_squared;
+            this.samples += worker.samples;
+        }
+
+        Estimate estimate() {
+            // No sample was consistent with the evidence (or none was drawn): the answer is unknown
+            if (this.weights == 0)
+                return new Estimate(Double.NaN, Double.NaN, this.samples);
+
+            double p = this.matching_weights / this.weights;
+            double variance = (this.matching_squared * (1 - 2 * p) + p * p * this.squared_weights) / (this.weights * this.weights);
+            return new Estimate(p, Z_95 * Math.sqrt(Math.max(0, variance)), this.samples);
+        }
+    }
+
+    /*
+     * Gibbs sampling: every sweep redraws each unobserved variable X from P(X | parents) * prod P(child | its parents)
+     * over its children, and adds P(Q=q | Markov blanket of Q) to the estimate. Consecutive sweeps are correlated, so
+     * the confidence interval comes from the means of batches of BATCH sweeps.
+     */
+    private static final class GibbsWorker extends Worker {
+        private static final long serialVersionUID = 1L;
+
+        double sum;                   // sum of P(Q=q | blanket) over the sweeps
+        long batches;
+        double batch_means;           // sum of the batch means
+        double squared_batch_means;   // sum of their squares
+
+        private final double[] weights;
+
+        GibbsWorker(Sampler sampler, long budget, long deadline, SplittableRandom random) {
+            super(sampler, budget, deadline, random);
+            this.weights = new double[sampler.max_cardinality];
+        }
+
+        protected void compute() {
+            Sampler sampler = this.sampler;
+
+            // Start from a forward sample that agrees with the evidence, if one turns up quickly:
+            double weight = sampler.forward(this.state, this.random);
+            for (int attempt = 1; weight == 0 && attempt < BURN_IN; attempt++) {
+                weight = sampler.forward(this.state, this.random);
+            }
+            for (int sweep = 0; sweep < BURN_IN && !expired(); sweep++) {
+                sweep();
+            }
+
+            long n = 0;
+            double batch = 0;
+            while (!done(n)) {
+                double p = sweep();
+                this.sum += p;
+                batch += p;
+                n++;
+                if (n % BATCH == 0) {
+                    double mean = batch / BATCH;
+                    this.batches++;
+                    this.batch_means += mean;
+                    this.squared_batch_means += mean * mean;
+                    batch = 0;
+                }
+            }
+            this.samples = n;
+        }
+
+        // Redraws every unobserved variable once; returns P(Q=q | the blanket of Q) as seen by the sweep:
+        private double sweep() {
+            Sampler sampler = this.sampler;
+            int[] state = this.state;
+            double query_probability = 0;
+
+            for (int id: sampler.free) {
+                DoubleBuffer table = sampler.tables[id];
+                int row = sampler.row(id, state);
+                int stride = sampler.cpt_strides[id][sampler.parents[id].length];
+                int current = state[id];
+
+                double total = 0;
+                for (int outcome = 0; outcome < sampler.cardinalities[id]; outcome++) {
+                    state[id] = outcome;
+                    double weight = table.get(row + outcome * stride);
+                    for (int child: sampler.children[id]) {
+                        weight *= sampler.probability(child, state);
+                    }
+                    this.weights[outcome] = weight;
+                    total += weight;
+                }
+
+                if (total == 0) {
+                    // No outcome is consistent with the blanket (only reachable from an inconsistent start): stay put
+                    state[id] = current;
+                    if (id == sampler.query)
+                        query_probability = current == sampler.outcome ? 1 : 0;
+                    continue;
+                }
+
+                double u = this.random.nextDouble() * total;
+                int outcome = 0;
+                int last = sampler.cardinalities[id] - 1;
+                while (outcome < last && (u -= this.weights[outcome]) >= 0) {
+                    outcome++;
+                }
+                state[id] = outcome;
+                if (id == sampler.query)
+                    query_probability = this.weights[sampler.outcome] / total;
+            }
+            return query_probability;
+        }
+
+        void add(Worker other) {
+            GibbsWorker worker = (GibbsWorker) other;
+            this.sum += worker.sum;
+            this.batches += worker.batches;
+            this.batch_means += worker.batch_means;
+            this.squared_batch_means += worker.squared_batch_means;
+            this.samples += worker.samples;
+        }
+
+        Estimate estimate() {
+            if (this.samples == 0)
+                return new Estimate(Double.NaN, Double.NaN, 0);
+
+            double p = this.sum / this.samples;
+            if (this.batches < 2)
+                return new Estimate(p, Double.NaN, this.samples);
+
+            double mean = this.batch_means / this.batches;
+            double variance = (this.squared_batch_means - this.batches * mean * mean) / (this.batches - 1);
+            return new Estimate(p, Z_95 * Math.sqrt(Math.max(0, variance) / this.batches), this.samples);
+        }
+    }
+}
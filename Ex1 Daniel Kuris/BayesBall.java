@@ -1,141 +1,241 @@
 import java.util.*;
 
 public class BayesBall {
+    private static final int VISIT_FROM_PARENT = 0;
+    private static final int VISIT_FROM_CHILD = 1;
 
-    public static boolean runBayesBall(List<BayesianNetworkElement> network, String variables, String evidenceString) {
-        String[] variableNames = variables.split("-");
-        String[] evidenceVariables = evidenceString.split(",");
+    // Traversal state is reused by every query on the same thread, so a traversal allocates nothing:
+    private static final ThreadLocal<Traversal> TRAVERSAL = ThreadLocal.withInitial(Traversal::new);
 
-        // Parse evidence variables into a list of names only
-        List<String> evidenceNames = new ArrayList<>();
-        for (String evidenceVar : evidenceVariables) {
-            if (!evidenceVar.trim().isEmpty()) {
-                evidenceNames.add(evidenceVar.split("=")[0].trim());
-            }
-        }
-
-        // Retrieve BayesianNetworkElement for each variable
-        if (variableNames.length != 2) {
-            return false;
-        }
-
-        String var1Name = variableNames[0].trim();
-        String var2Name = variableNames[1].trim();
+    public static boolean runBayesBall(CompiledNetwork network, String variables, String evidenceString) {
+        CompiledQuery query = QueryParser.parse(network, variables + "|" + evidenceString);
+        return query.kind == CompiledQuery.Kind.INDEPENDENCE && runBayesBall(network, query, null);
+    }
 
-        BayesianNetworkElement var1 = searchElementByName(network, var1Name);
-        BayesianNetworkElement var2 = searchElementByName(network, var2Name);
+    /*
+     * Same as above for a pair query compiled by QueryParser, recording the traversal in 'profile' (may be null).
+     */
+    public static boolean runBayesBall(CompiledNetwork network, CompiledQuery query, QueryProfile profile) {
+        return isIndependent(network, query.sources[0], query.targets[0], query.evidence, profile);
+    }
 
-        if (var1 == null || var2 == null) {
+    public static boolean isIndependent(BayesianNetworkElement source, BayesianNetworkElement destination,List<String> evidenceNames, CompiledNetwork network) {
+        if(source.name.equals(destination.name))
             return false;
-        }
 
+        // Mark evidence nodes if there are any (the marks are local to this query, never stored on the elements)
+        Traversal traversal = TRAVERSAL.get();
+        traversal.reset(network.size());
+        for (String name : evidenceNames) {
+            int id = network.idOf(name);
+            if (id != -1) {
+                traversal.observe(id);
+            }
+        }
 
-        // Determine independence using parsed evidence names
-        boolean independent = isIndependent(var1, var2, evidenceNames, network);
+        return !traversal.reaches(network, source.id, destination.id);
+    }
 
+    /*
+     * Same as above over ids: 'evidence' holds the observed outcome of every variable (-1 for unobserved ones),
+     * as in CompiledQuery.evidence.
+     */
+    public static boolean isIndependent(CompiledNetwork network, int source, int destination, int[] evidence) {
+        return isIndependent(network, source, destination, evidence, null);
+    }
 
+    private static boolean isIndependent(CompiledNetwork network, int source, int destination, int[] evidence, QueryProfile profile) {
+        if (source == destination)
+            return false;
 
+        Traversal traversal = TRAVERSAL.get();
+        traversal.reset(network.size());
+        for (int id = 0; id < evidence.length; id++) {
+            if (evidence[id] != -1)
+                traversal.observe(id);
+        }
 
-        return independent;
+        boolean reaches = traversal.reaches(network, source, destination);
+        if (profile != null)
+            profile.visited(traversal.tail);
+        return !reaches;
     }
 
-    public static boolean isIndependent(BayesianNetworkElement source, BayesianNetworkElement destination,List<String> evidenceNames, List<BayesianNetworkElement> network) {
-        if(source.name.equals(destination.name))
-            return false;
+    /*
+     * Returns which variables are d-connected to 'source' given the evidence ('evidence' as in the overload above),
+     * found in a single traversal. The source itself counts as connected, so connected[y] == !isIndependent(source, y).
+     */
+    public static boolean[] dConnected(CompiledNetwork network, int source, int[] evidence) {
+        return dConnected(network, source, evidence, null);
+    }
 
-        // Mark evidence nodes if there are any
-        if (!evidenceNames.isEmpty()) {
-            markEvidences(evidenceNames, network);
+    private static boolean[] dConnected(CompiledNetwork network, int source, int[] evidence, QueryProfile profile) {
+        Traversal traversal = TRAVERSAL.get();
+        traversal.reset(network.size());
+        for (int id = 0; id < evidence.length; id++) {
+            if (evidence[id] != -1)
+                traversal.observe(id);
         }
 
-        BayesianNetworkElement result = canReach(source, destination, network);
-
-        // Reset the network state
-        resetVars(network);
+        traversal.reaches(network, source, -1);
+        if (profile != null)
+            profile.visited(traversal.tail);
+        return traversal.visited(network.size());
+    }
 
-        if(result == null)
-            return true;
-        return !result.name.equals(destination.name);
+    /*
+     * Answers one-to-many and many-to-many independence queries. Each side of the '-' is a variable, a comma
+     * separated list of variables or '*' (every variable that is not evidence):
+     *   A-*|J=T        ->  B=no,E=no,M=yes             (one source: its answer for every target)
+     *   A,B-J,M|E=T    ->  A:J=no,M=no;B:J=no,M=no     (several sources: one group per source)
+     *   *-*|J=T        ->  the independence matrix of every unobserved variable, one row per source
+     * Pairs of a variable with itself are skipped. The query is compiled by QueryParser (which rejects unknown
+     * variables); the traversals are recorded in 'profile' (may be null).
+     */
+    public static String runBayesBallBatch(CompiledNetwork network, CompiledQuery query, QueryProfile profile) {
+        StringBuilder result = new StringBuilder();
+        for (int source : query.sources) {
+            boolean[] connected = dConnected(network, source, query.evidence, profile);
+
+            if (query.grouped) {
+                if (result.length() > 0)
+                    result.append(';');
+                result.append(network.names[source]).append(':');
+            }
+            String comma = "";
+            for (int target : query.targets) {
+                if (target == source)
+                    continue;
+                result.append(comma).append(network.names[target]).append('=').append(connected[target] ? "no" : "yes");
+                comma = ",";
+            }
+        }
+        return result.toString();
     }
 
-    private static BayesianNetworkElement canReach(BayesianNetworkElement source, BayesianNetworkElement target, List<BayesianNetworkElement> network) {
-        Queue<BayesianNetworkElement> toVisit = new LinkedList<>();
-        source.visit = BayesianNetworkElement.VISIT_FROM_CHILD;
-        toVisit.add(source);
+    /*
+     * The state of one traversal: bitsets of observed nodes, of nodes that passed the ball to their parents (top)
+     * and to their children (bottom), and of (node, direction) entries already queued. Since every entry is queued
+     * at most once, the queue is a flat int array of 2 * size entries that is never wrapped around.
+     * Arrays only grow, and reset() just clears the words a network of the given size uses.
+     */
+    private static final class Traversal {
+        private long[] observed = new long[0];
+        private long[] top = new long[0];
+        private long[] bottom = new long[0];
+        private long[] queued = new long[0];
+        private int[] queue = new int[0];
+        private int tail;
+
+        void reset(int size) {
+            int words = (size + 63) >>> 6;
+            int entry_words = (2 * size + 63) >>> 6;
+            // Each array is sized against its own requirement: networks with the same number of node words can
+            // still need more queue entries and entry words than an earlier, smaller network did.
+            if (this.observed.length < words) {
+                this.observed = new long[words];
+                this.top = new long[words];
+                this.bottom = new long[words];
+            } else {
+                Arrays.fill(this.observed, 0, words, 0L);
+                Arrays.fill(this.top, 0, words, 0L);
+                Arrays.fill(this.bottom, 0, words, 0L);
+            }
+            if (this.queued.length < entry_words) {
+                this.queued = new long[entry_words];
+            } else {
+                Arrays.fill(this.queued, 0, entry_words, 0L);
+            }
+            if (this.queue.length < 2 * size)
+                this.queue = new int[2 * size];
+            this.tail = 0;
+        }
 
-        while (!toVisit.isEmpty()) {
-            BayesianNetworkElement curr = toVisit.remove();
-            curr.updateChildren(network);
+        void observe(int node) {
+            set(this.observed, node);
+        }
 
-            if (curr.equals(target)) {
-                return target;
+        /*
+         * Nodes the ball reached in the last traversal (queued from either direction).
+         */
+        boolean[] visited(int size) {
+            boolean[] visited = new boolean[size];
+            for (int node = 0; node < size; node++) {
+                visited[node] = get(this.queued, node * 2) || get(this.queued, node * 2 + 1);
             }
+            return visited;
+        }
 
-            if (curr.color == BayesianNetworkElement.UNCOLORED && curr.visit == BayesianNetworkElement.VISIT_FROM_CHILD) {
-                if (curr.hasChild()) {
-                    for (BayesianNetworkElement child : curr.children) {
-                        if (child.visit == BayesianNetworkElement.UNVISITED) {
-                            child.visit = BayesianNetworkElement.VISIT_FROM_PARENT;
-                            toVisit.add(child);
-                        }
-                    }
-                }
-                if (curr.hasParent()) {
-                    for (BayesianNetworkElement parent : curr.given) {
-                        if (parent.visit == BayesianNetworkElement.UNVISITED) {
-                            parent.visit = BayesianNetworkElement.VISIT_FROM_CHILD;
-                            toVisit.add(parent);
-                        }
-                    }
+        /*
+         * Bayes Ball traversal from 'source' (visiting everything reachable when 'target' is -1). A node is marked
+         * separately for passing the ball to its parents (top) and to its children (bottom), so a node reached first
+         * from one direction can still be passed on from the other. Children and parents are precomputed by
+         * CompiledNetwork, so the traversal never rescans the network.
+         */
+        boolean reaches(CompiledNetwork network, int source, int target) {
+            // Queue entries are (node, direction) pairs packed as node * 2 + direction:
+            enqueue(source * 2 + VISIT_FROM_CHILD);
+
+            for (int head = 0; head < this.tail; head++) {
+                int entry = this.queue[head];
+                int curr = entry >>> 1;
+                int direction = entry & 1;
+
+                if (curr == target) {
+                    return true;
                 }
-            } else if (curr.color == BayesianNetworkElement.UNCOLORED && curr.visit == BayesianNetworkElement.VISIT_FROM_PARENT) {
-                if (curr.hasChild()) {
-                    for (BayesianNetworkElement child : curr.children) {
-                        if (child.visit != BayesianNetworkElement.VISIT_FROM_PARENT) {
-                            child.visit = BayesianNetworkElement.VISIT_FROM_PARENT;
-                            toVisit.add(child);
-                        }
-                    }
-                }
-            } else if (curr.color == BayesianNetworkElement.COLORED && curr.visit == BayesianNetworkElement.VISIT_FROM_PARENT) {
-                if (curr.hasParent()) {
-                    for (BayesianNetworkElement parent : curr.given) {
-                        if (parent.visit != BayesianNetworkElement.VISIT_FROM_CHILD) {
-                            parent.visit = BayesianNetworkElement.VISIT_FROM_CHILD;
-                            toVisit.add(parent);
-                        }
+
+                boolean is_observed = get(this.observed, curr);
+                if (direction == VISIT_FROM_CHILD) {
+                    // Unobserved node reached from a child: the ball passes through to its parents and children.
+                    if (!is_observed) {
+                        passToParents(network, curr);
+                        passToChildren(network, curr);
                     }
+                    // Observed node reached from a child - DO NOTHING!
+                } else if (is_observed) {
+                    // Observed node reached from a parent bounces the ball back up to its parents (v-structure).
+                    passToParents(network, curr);
+                } else {
+                    // Unobserved node reached from a parent passes the ball on to its children.
+                    passToChildren(network, curr);
                 }
             }
-            // Case 4 (color == COLORED && visit == VISIT_FROM_CHILD) - DO NOTHING!
+
+            return false;
         }
 
-        return null;
-    }
+        private void passToParents(CompiledNetwork network, int node) {
+            if (get(this.top, node))
+                return;
+            set(this.top, node);
+            for (int parent : network.parents[node]) {
+                enqueue(parent * 2 + VISIT_FROM_CHILD);
+            }
+        }
 
-    private static void markEvidences(List<String> evidenceNames, List<BayesianNetworkElement> network) {
-        for (String name : evidenceNames) {
-            BayesianNetworkElement element = searchElementByName(network, name);
-            if (element != null) {
-                element.color = BayesianNetworkElement.COLORED;
+        private void passToChildren(CompiledNetwork network, int node) {
+            if (get(this.bottom, node))
+                return;
+            set(this.bottom, node);
+            for (int child : network.children[node]) {
+                enqueue(child * 2 + VISIT_FROM_PARENT);
             }
         }
-    }
 
-    private static void resetVars(List<BayesianNetworkElement> network) {
-        for (BayesianNetworkElement element : network) {
-            element.color = BayesianNetworkElement.UNCOLORED;
-            element.visit = BayesianNetworkElement.UNVISITED;
+        private void enqueue(int entry) {
+            if (!get(this.queued, entry)) {
+                set(this.queued, entry);
+                this.queue[this.tail++] = entry;
+            }
         }
-    }
 
+        private static boolean get(long[] bits, int index) {
+            return (bits[index >>> 6] & (1L << index)) != 0;
+        }
 
-    private static BayesianNetworkElement searchElementByName(List<BayesianNetworkElement> network, String name) {
-        for (BayesianNetworkElement element : network) {
-            if (Objects.equals(element.name, name)) {
-                return element;
-            }
+        private static void set(long[] bits, int index) {
+            bits[index >>> 6] |= 1L << index;
         }
-        return null;
     }
 }
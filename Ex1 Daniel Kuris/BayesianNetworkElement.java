@@ -6,31 +6,21 @@ import java.util.Objects;
  * The following class will represent an element in a Bayesian network.
  */
 public class BayesianNetworkElement {
+    // Dense id assigned by CompiledNetwork (the element's position in the network):
+    public int id;
     public String name;
     public List<String> outcomes;
     public List<BayesianNetworkElement> given;
     public List<BayesianNetworkElement> children;
+    // The parsed CPT (null for elements loaded from a snapshot, whose CPTs stay in the mapped file):
     public double[] table;
 
-    // Visit and color fields for the Bayes Ball algorithm
-    public int visit;
-    public int color;
-
-    public static final int UNVISITED = 0;
-    public static final int VISIT_FROM_PARENT = 1;
-    public static final int VISIT_FROM_CHILD = 2;
-
-    public static final int UNCOLORED = 0;
-    public static final int COLORED = 1;
-
     public BayesianNetworkElement(String name, List<String> outcomes) {
         this.name = name;
         this.outcomes = outcomes;
         this.given = null;
         this.children = null;
         this.table = null;
-        this.visit = UNVISITED;
-        this.color = UNCOLORED;
     }
 
     /*
@@ -58,44 +48,4 @@ public class BayesianNetworkElement {
         }
     }
 
-    /*
-     * Returns the CPT of this element's variable given a specific outcome.
-     */
-    public double getCptValue(List<String> outcomes) {
-        int offset = 0;
-        int modifier = this.table.length;
-
-        int i = 0;
-        for (BayesianNetworkElement parent: this.given) {
-            modifier /= parent.outcomes.size();
-            offset += modifier * parent.outcomes.indexOf(outcomes.get(i));
-
-            i++;
-        }
-
-        modifier /= this.outcomes.size();
-        offset += modifier * this.outcomes.indexOf(outcomes.get(i));
-
-        return this.table[offset];
-    }
-
-    public boolean hasParent() {
-        // Checks if the element has any parents
-        return this.given != null && !this.given.isEmpty();
-    }
-
-    public void updateChildren(List<BayesianNetworkElement> network) {
-        this.children = new ArrayList<>();
-        // Checks if the element is a parent to any other elements in the network
-        for (BayesianNetworkElement element : network) {
-            if (element.given != null && element.given.contains(this)) {
-                this.children.add(element);
-            }
-        }
-    }
-
-    public boolean hasChild(){
-        return this.children != null && !this.children.isEmpty();
-    }
-
 }
@@ -13,6 +13,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class BayesianNetworkTools {
     public static BayesianNetworkElement searchElementByName(List<BayesianNetworkElement> network, String name) {
@@ -82,132 +84,218 @@ public class BayesianNetworkTools {
         return network_elements;
     }
 
-    public static double calculateCPT(List<BayesianNetworkElement> network, String request_left, String request_right, MathematicalOperationsCounter counter) {
+    public static double calculateCPT(CompiledNetwork network, String request_left, String request_right, MathematicalOperationsCounter counter) {
         // format: B=T|J=T,M=T
-        String left_name = request_left.split("=")[0];
-        String left_value = request_left.split("=")[1];
+        return calculateCPT(network, QueryParser.parseProbability(network, request_left, request_right, ""), false, false, counter);
+    }
+
+    /*
+     * Same as above for a query compiled by QueryParser; with 'log_space' the joint probabilities are summed as
+     * logarithms (log P and log-sum-exp), so the answer stays finite on networks where every joint probability
+     * underflows to 0. With 'parallel' the joint assignments are split on the leading free variables into at least
+     * as many tasks as the common ForkJoinPool has threads. The partial sums are added in order afterwards, so the
+     * answer may differ from the sequential one in the last bits (the counts do not).
+     */
+    public static double calculateCPT(CompiledNetwork network, CompiledQuery query, boolean log_space, boolean parallel, MathematicalOperationsCounter counter) {
+        int[][] assignments = new int[network.cardinalities[query.variable]][];
+        for (int i = 0; i < assignments.length; i++) {
+            // An observed query variable only matches its observed outcome:
+            if (query.evidence[query.variable] != -1 && query.evidence[query.variable] != i)
+                continue;
+            assignments[i] = query.evidence.clone();
+            assignments[i][query.variable] = i;
+        }
 
-        double numerator = 0;
-        double denominator = 0;
+        return calculateCPT(network, query.outcome, assignments, log_space, parallel, counter);
+    }
 
-        for (String outcome: searchElementByName(network, left_name).outcomes) {
-            List<String> variables = Arrays.asList((left_name+"="+outcome + "," + request_right).split(","));
-            List<String> outcome_combinations = defineOutcomes(network, variables);
+    /*
+     * Enumerates the joint once per outcome of the query variable: 'assignments[i]' fixes the query variable to its
+     * i-th outcome and the evidence (-1 for free variables; null if no assignment matches the query).
+     */
+    private static double calculateCPT(CompiledNetwork network, int query_outcome, int[][] assignments, boolean log_space, boolean parallel, MathematicalOperationsCounter counter) {
+        double numerator = log_space ? Double.NEGATIVE_INFINITY : 0;
+        double denominator = log_space ? Double.NEGATIVE_INFINITY : 0;
+
+        int[][] touched = touchedTables(network);
+        for (int i = 0; i < assignments.length; i++) {
+            // The fixed outcome of every variable (-1 for free ones); null if no assignment matches the variables:
+            int[] assignment = assignments[i];
+
+            double probability = log_space ? Double.NEGATIVE_INFINITY : 0;
+            if (assignment != null) {
+                long combinations = 1;
+                for (int id = 0; id < network.size(); id++) {
+                    if (assignment[id] == -1)
+                        combinations *= network.cardinalities[id];
+                }
 
-            double probability = 0;
-            for (String outcome_combination : outcome_combinations) {
-                probability += P(network, outcome_combination.split(","), counter);
+                probability = enumerateJoint(network, touched, assignment, log_space, parallel);
 
-                // Counting additions of probabilities for all possible input combinations where the desired variable's (the variable to the left of '|') value is 'outcome':
-                if (outcome_combinations.indexOf(outcome_combination) != 0)
-                    counter.addition();
+                // Every combination is a product of one CPT entry per variable, and all combinations are added up:
+                counter.multiplications(Math.toIntExact(combinations * (network.size() - 1)));
+                counter.additions(Math.toIntExact(combinations - 1));
             }
 
-            denominator += probability;
+            denominator = log_space ? logAdd(denominator, probability) : denominator + probability;
             // Counting the addition of the current probability to the denominator:
-            if (searchElementByName(network, left_name).outcomes.indexOf(outcome) != 0)
+            if (i != 0)
                 counter.addition();
 
-            if (Objects.equals(outcome, left_value))
+            if (i == query_outcome)
                 numerator = probability;
         }
 
-        return numerator/denominator;
+        return log_space ? Math.exp(numerator - denominator) : numerator/denominator;
     }
 
     /*
-     * Returns all valid outcomes for the given variables.
+     * log(exp(a) + exp(b)) without leaving log space.
      */
-    public static List<String> defineOutcomes(List<BayesianNetworkElement> network, List<String> variables) {
-        // get list of free variables:
-        List<BayesianNetworkElement> unused_elements = getUnusedElements(network, variables);
-
-        // get all possible outcome combinations:
-        List<String> outcomes = new ArrayList<>();
-        generatePermutations(network, outcomes, 0, "");
-
-        // keep only the combinations that have the set outcomes for our variables:
-        int i = 0;
-        for (BayesianNetworkElement element: network) {
-            if (!unused_elements.contains(element)) {
-                String variable_outcome = "";
-                for (String variable: variables) {
-                    if (Objects.equals(variable.split("=")[0], element.name)) {
-                        variable_outcome = variable.split("=")[1];
-                        break;
-                    }
-                }
+    private static double logAdd(double a, double b) {
+        if (a == Double.NEGATIVE_INFINITY)
+            return b;
+        if (b == Double.NEGATIVE_INFINITY)
+            return a;
+        return Math.max(a, b) + Math.log1p(Math.exp(-Math.abs(a - b)));
+    }
 
-                List<String> temp = new ArrayList<>();
-                for (String outcome: outcomes) {
-                    if (Objects.equals(outcome.split(",")[i], variable_outcome))
-                        temp.add(outcome);
-                }
-                outcomes = temp;
+    /*
+     * For every variable, the tables whose entry depends on its outcome: its own CPT and its children's, as pairs of
+     * (table, stride of the variable in that table).
+     */
+    private static int[][] touchedTables(CompiledNetwork network) {
+        int[] counts = new int[network.size()];
+        for (int id = 0; id < network.size(); id++) {
+            counts[id] += 2;
+            for (int parent: network.parents[id]) {
+                counts[parent] += 2;
             }
-
-            i++;
         }
 
-        return outcomes;
-    }
-
-    public static void generatePermutations(List<BayesianNetworkElement> lists, List<String> result, int depth, String current) {
-        if (depth == lists.size()) {
-            // 'substring' removes the ',' at the start.
-            result.add(current.substring(1));
-            return;
+        int[][] touched = new int[network.size()][];
+        for (int id = 0; id < network.size(); id++) {
+            touched[id] = new int[counts[id]];
+            counts[id] = 0;
         }
-
-        for (int i = 0; i < lists.get(depth).outcomes.size(); i++) {
-            generatePermutations(lists, result, depth + 1, current + "," + lists.get(depth).outcomes.get(i));
+        for (int id = 0; id < network.size(); id++) {
+            int[] parents = network.parents[id];
+            for (int i = 0; i <= parents.length; i++) {
+                int variable = i < parents.length ? parents[i] : id;
+                touched[variable][counts[variable]++] = id;
+                touched[variable][counts[variable]++] = network.cpt_strides[id][i];
+            }
         }
+
+        return touched;
     }
 
     /*
-     * Calculate the probability of a specific outcome combination.
+     * Sums P(assignment) over every completion of the free variables (-1 in 'assignment'), in the order of the
+     * original enumeration (the last variable changes fastest).
      */
-    public static double P(List<BayesianNetworkElement> network, String[] outcomes, MathematicalOperationsCounter counter) {
-        double probability = 1;
-
-        for (BayesianNetworkElement element: network) {
-            int offset = 0;
-            int modifier = element.table.length;
-            for (BayesianNetworkElement parent: element.given) {
-                modifier /= parent.outcomes.size();
-                offset += modifier * parent.outcomes.indexOf(outcomes[network.indexOf(parent)]);
-            }
-
-            modifier /= element.outcomes.size();
-            offset += modifier * element.outcomes.indexOf(outcomes[network.indexOf(element)]);
+    private static double enumerateJoint(CompiledNetwork network, int[][] touched, int[] assignment, boolean log_space, boolean parallel) {
+        int free_count = 0;
+        for (int outcome: assignment) {
+            if (outcome == -1)
+                free_count++;
+        }
+        int[] free = new int[free_count];
+        for (int id = 0, j = 0; id < network.size(); id++) {
+            if (assignment[id] == -1)
+                free[j++] = id;
+        }
 
-            probability *= element.table[offset];
+        if (!parallel)
+            return enumerateCompletions(network, touched, assignment, free, log_space);
 
-            if (network.indexOf(element) != 0)
-                counter.multiplication();
+        // Split on as many leading free variables as it takes to have a task for every thread of the pool:
+        int split = 0;
+        int task_count = 1;
+        while (split < free.length && task_count < ForkJoinPool.getCommonPoolParallelism()) {
+            task_count = Math.multiplyExact(task_count, network.cardinalities[free[split++]]);
+        }
+        int[] rest = Arrays.copyOfRange(free, split, free.length);
+
+        List<ForkJoinTask<Double>> tasks = new ArrayList<>(task_count);
+        for (int task = 0; task < task_count; task++) {
+            // The task's outcomes of the leading variables, the last of them changing fastest:
+            int[] fixed = assignment.clone();
+            for (int d = split - 1, remainder = task; d >= 0; d--) {
+                fixed[free[d]] = remainder % network.cardinalities[free[d]];
+                remainder /= network.cardinalities[free[d]];
+            }
+            tasks.add(ForkJoinTask.adapt(() -> enumerateCompletions(network, touched, fixed, rest, log_space)));
         }
+        ForkJoinTask.invokeAll(tasks);
 
-        return probability;
+        double sum = log_space ? Double.NEGATIVE_INFINITY : 0;
+        for (ForkJoinTask<Double> task: tasks) {
+            sum = log_space ? logAdd(sum, task.join()) : sum + task.join();
+        }
+        return sum;
     }
 
-    public static List<BayesianNetworkElement> getUnusedElements(List<BayesianNetworkElement> network, List<String> variables) {
-        List<BayesianNetworkElement> unused_elements = new ArrayList<>();
+    /*
+     * Sums P over every completion of the free variables of 'fixed', as a mixed-radix odometer over the free
+     * variables. A step only moves the CPT offsets of the tables that mention a changed variable, and the product is
+     * only recomputed from the first such table on (the prefix before it is unchanged).
+     */
+    private static double enumerateCompletions(CompiledNetwork network, int[][] touched, int[] fixed, int[] free, boolean log_space) {
+        int size = network.size();
+        int[] assignment = fixed.clone();
+        for (int variable: free) {
+            assignment[variable] = 0;
+        }
 
-        for (BayesianNetworkElement element: network) {
-            boolean used = false;
-            for (String variable: variables) {
-                String name = variable.split("=")[0];
-                if (Objects.equals(name, element.name)) {
-                    used = true;
+        // Offset of the current entry in every CPT, and the running product (or log sum) of the entries:
+        int[] offsets = new int[size];
+        for (int id = 0; id < size; id++) {
+            int[] parents = network.parents[id];
+            for (int i = 0; i < parents.length; i++) {
+                offsets[id] += network.cpt_strides[id][i] * assignment[parents[i]];
+            }
+            offsets[id] += network.cpt_strides[id][parents.length] * assignment[id];
+        }
+        double[] prefix = new double[size + 1];
+        prefix[0] = log_space ? 0 : 1;
+
+        // First table whose entry changed since the product was last computed:
+        int dirty = 0;
+        double sum = log_space ? Double.NEGATIVE_INFINITY : 0;
+        while (true) {
+            for (int id = dirty; id < size; id++) {
+                double entry = network.tables[id].get(offsets[id]);
+                prefix[id + 1] = log_space ? prefix[id] + Math.log(entry) : prefix[id] * entry;
+            }
+            sum = log_space ? logAdd(sum, prefix[size]) : sum + prefix[size];
+
+            // Advance the odometer, undoing the offsets of the digits that wrapped around (done once the first free
+            // variable wraps around, or right away without free variables):
+            dirty = size;
+            int d = free.length - 1;
+            while (true) {
+                if (d < 0)
+                    return sum;
+
+                int variable = free[d];
+                int[] tables = touched[variable];
+                int limit = network.cardinalities[variable];
+                if (++assignment[variable] < limit) {
+                    for (int k = 0; k < tables.length; k += 2) {
+                        offsets[tables[k]] += tables[k + 1];
+                        dirty = Math.min(dirty, tables[k]);
+                    }
                     break;
                 }
+                assignment[variable] = 0;
+                for (int k = 0; k < tables.length; k += 2) {
+                    offsets[tables[k]] -= tables[k + 1] * (limit - 1);
+                    dirty = Math.min(dirty, tables[k]);
+                }
+                d--;
             }
-
-            if (!used)
-                unused_elements.add(element);
         }
-
-        return unused_elements;
     }
 
 }
@@ -0,0 +1,154 @@
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * An integer-indexed view of a parsed Bayesian network.
+ * Every variable gets a dense id (its position in the parsed network) and every outcome a dense id (its position
+ * in the variable's outcome list), so the inference code can look up variables, outcomes, parents, children and
+ * CPT offsets in constant time instead of scanning lists.
+ */
+public class CompiledNetwork {
+    public final List<BayesianNetworkElement> elements;
+    public final String[] names;
+    public final String[][] outcomes;
+    public final int[] cardinalities;
+    public final int[][] parents;
+    public final int[][] children;
+    // Strides of the parents (in <GIVEN> order) inside each CPT, followed by the stride of the variable itself:
+    public final int[][] cpt_strides;
+    // The CPTs, read with absolute get(index): the parsed heap arrays, or views over the mapped file of a snapshot:
+    public final DoubleBuffer[] tables;
+
+    private final Map<String, Integer> name_index;
+    private final List<Map<String, Integer>> outcome_index;
+
+    // Built on first use and shared by every query on this network:
+    private JunctionTree junction_tree;
+    // Cache of reduced CPTs and intermediate VE factors (null disables it):
+    public volatile FactorCache factor_cache;
+    public volatile QueryResultCache result_cache;
+
+    public CompiledNetwork(List<BayesianNetworkElement> network) {
+        this(network, heapTables(network));
+    }
+
+    /*
+     * Same as above, with the CPTs given separately (in network order) instead of read from the elements.
+     */
+    public CompiledNetwork(List<BayesianNetworkElement> network, DoubleBuffer[] tables) {
+        int size = network.size();
+        this.elements = network;
+        this.names = new String[size];
+        this.outcomes = new String[size][];
+        this.cardinalities = new int[size];
+        this.parents = new int[size][];
+        this.children = new int[size][];
+        this.cpt_strides = new int[size][];
+        this.tables = tables;
+        this.name_index = new HashMap<>(size * 2);
+        this.outcome_index = new ArrayList<>(size);
+
+        // Assign ids and index names and outcomes:
+        for (int id = 0; id < size; id++) {
+            BayesianNetworkElement element = network.get(id);
+            element.id = id;
+
+            this.names[id] = element.name;
+            this.outcomes[id] = element.outcomes.toArray(new String[0]);
+            this.cardinalities[id] = this.outcomes[id].length;
+            this.name_index.put(element.name, id);
+
+            Map<String, Integer> outcome_ids = new HashMap<>(this.cardinalities[id] * 2);
+            for (int outcome = 0; outcome < this.cardinalities[id]; outcome++) {
+                outcome_ids.put(this.outcomes[id][outcome], outcome);
+            }
+            this.outcome_index.add(outcome_ids);
+        }
+
+        // Parent ids, CPT strides and child counts:
+        int[] child_count = new int[size];
+        for (int id = 0; id < size; id++) {
+            BayesianNetworkElement element = network.get(id);
+            int parent_count = element.given == null ? 0 : element.given.size();
+            this.parents[id] = new int[parent_count];
+            this.cpt_strides[id] = new int[parent_count + 1];
+
+            int modifier = this.tables[id] == null ? 0 : this.tables[id].capacity();
+            for (int i = 0; i < parent_count; i++) {
+                int parent = element.given.get(i).id;
+                this.parents[id][i] = parent;
+                child_count[parent]++;
+
+                modifier /= this.cardinalities[parent];
+                this.cpt_strides[id][i] = modifier;
+            }
+            this.cpt_strides[id][parent_count] = modifier / this.cardinalities[id];
+        }
+
+        // Child adjacency (in network order), shared with the elements:
+        for (int id = 0; id < size; id++) {
+            this.children[id] = new int[child_count[id]];
+            network.get(id).children = new ArrayList<>(child_count[id]);
+            child_count[id] = 0;
+        }
+        for (int id = 0; id < size; id++) {
+            for (int parent: this.parents[id]) {
+                this.children[parent][child_count[parent]++] = id;
+                network.get(parent).children.add(network.get(id));
+            }
+        }
+    }
+
+    private static DoubleBuffer[] heapTables(List<BayesianNetworkElement> network) {
+        DoubleBuffer[] tables = new DoubleBuffer[network.size()];
+        for (int id = 0; id < tables.length; id++) {
+            double[] table = network.get(id).table;
+            tables[id] = table == null ? null : DoubleBuffer.wrap(table);
+        }
+        return tables;
+    }
+
+    /*
+     * Returns the junction tree of this network, building it on first use.
+     */
+    public synchronized JunctionTree junctionTree() {
+        if (this.junction_tree == null)
+            this.junction_tree = new JunctionTree(this);
+        return this.junction_tree;
+    }
+
+    public int size() {
+        return this.names.length;
+    }
+
+    /*
+     * Returns the id of the variable with the given name, or -1 if there is no such variable.
+     */
+    public int idOf(String name) {
+        Integer id = this.name_index.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /*
+     * Returns the id of the given outcome of a variable, or -1 if the variable has no such outcome.
+     */
+    public int outcomeOf(int variable, String outcome) {
+        Integer id = this.outcome_index.get(variable).get(outcome);
+        return id == null ? -1 : id;
+    }
+
+    public BayesianNetworkElement element(int id) {
+        return this.elements.get(id);
+    }
+
+    /*
+     * Returns the element with the given name, or null if there is no such element.
+     */
+    public BayesianNetworkElement element(String name) {
+        int id = idOf(name);
+        return id == -1 ? null : this.elements.get(id);
+    }
+}
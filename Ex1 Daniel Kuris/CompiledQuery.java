@@ -0,0 +1,80 @@
+/*
+ * A query line parsed and checked against a network once (see QueryParser), in ids instead of names. The engines
+ * take it as is, so no engine splits query strings again. A compiled query is never modified after parsing, and its
+ * arrays must be treated as read-only (they may be shared by the engines of several threads).
+ */
+public final class CompiledQuery {
+    public enum Kind {
+        PROBABILITY,          // P(Q=q|E=e,...) [order] [options]
+        INDEPENDENCE,         // A-B|E=e,...
+        INDEPENDENCE_BATCH,   // A-*|E, A,B-C,D|E, *-*|E
+        INVALID               // see 'error'
+    }
+
+    public final String text;
+    public final Kind kind;
+    public final String error;   // why the query is invalid (null for valid queries)
+
+    // Probability queries: the query variable and its outcome
+    public final int variable;
+    public final int outcome;
+
+    // Observed outcome of every variable, -1 for unobserved ones (independence queries only use whether a variable
+    // is observed; an observation without an outcome is stored as 0)
+    public final int[] evidence;
+
+    // Probability queries: the explicit elimination order, or null when the planner picks one with 'heuristic'
+    public final int[] elimination_order;
+    public final EliminationOrderPlanner.Heuristic heuristic;
+    public final QueryOptions options;
+
+    // Independence queries: every source is checked against every target; a 'grouped' answer lists the targets of
+    // each source separately
+    public final int[] sources;
+    public final int[] targets;
+    public final boolean grouped;
+
+    private CompiledQuery(String text, Kind kind, String error, int variable, int outcome, int[] evidence,
+                          int[] elimination_order, EliminationOrderPlanner.Heuristic heuristic, QueryOptions options,
+                          int[] sources, int[] targets, boolean grouped) {
+        this.text = text;
+        this.kind = kind;
+        this.error = error;
+        this.variable = variable;
+        this.outcome = outcome;
+        this.evidence = evidence;
+        this.elimination_order = elimination_order;
+        this.heuristic = heuristic;
+        this.options = options;
+        this.sources = sources;
+        this.targets = targets;
+        this.grouped = grouped;
+    }
+
+    static CompiledQuery probability(String text, int variable, int outcome, int[] evidence, int[] elimination_order,
+                                     EliminationOrderPlanner.Heuristic heuristic, QueryOptions options) {
+        return new CompiledQuery(text, Kind.PROBABILITY, null, variable, outcome, evidence, elimination_order,
+                heuristic, options, null, null, false);
+    }
+
+    static CompiledQuery independence(String text, int[] sources, int[] targets, boolean batch, boolean grouped, int[] evidence) {
+        return new CompiledQuery(text, batch ? Kind.INDEPENDENCE_BATCH : Kind.INDEPENDENCE, null, -1, -1, evidence,
+                null, null, null, sources, targets, grouped);
+    }
+
+    static CompiledQuery invalid(String text, String error) {
+        return new CompiledQuery(text, Kind.INVALID, error, -1, -1, null, null, null, null, null, null, false);
+    }
+
+    public boolean isValid() {
+        return this.kind != Kind.INVALID;
+    }
+
+    /*
+     * The same probability query with other options (e.g. to rerun it in double precision).
+     */
+    public CompiledQuery withOptions(QueryOptions options) {
+        return new CompiledQuery(this.text, this.kind, this.error, this.variable, this.outcome, this.evidence,
+                this.elimination_order, this.heuristic, options, this.sources, this.targets, this.grouped);
+    }
+}
@@ -0,0 +1,246 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/*
+ * Computes an elimination order for variable elimination from the moral graph of a set of factors.
+ * Every factor's variables form a clique of the graph, variables are removed greedily by the chosen heuristic,
+ * and the size of the largest factor the order would create is predicted along the way.
+ */
+public class EliminationOrderPlanner {
+    public enum Heuristic {
+        MIN_FILL,          // fewest fill-in edges
+        MIN_DEGREE,        // fewest neighbors
+        MIN_WEIGHT,        // smallest factor created (product of the neighbors' cardinalities)
+        WEIGHTED_MIN_FILL; // fill-in edges weighted by the product of their endpoints' cardinalities
+
+        /*
+         * Parses "min-fill", "min-degree", "min-weight" or "weighted-min-fill" (case-insensitive).
+         */
+        public static Heuristic parse(String name) {
+            return Heuristic.valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /*
+     * The result of planning: the elimination order (variable ids) and the largest factor it creates.
+     */
+    public static class Plan {
+        public final int[] order;
+        public final long max_factor_size;
+        public final Heuristic heuristic;
+
+        Plan(int[] order, long max_factor_size, Heuristic heuristic) {
+            this.order = order;
+            this.max_factor_size = max_factor_size;
+            this.heuristic = heuristic;
+        }
+    }
+
+    /*
+     * Plans the elimination of every variable in 'to_eliminate' that appears in one of the factors.
+     */
+    public static Plan plan(CompiledNetwork network, List<Factor> factors, boolean[] to_eliminate, Heuristic heuristic) {
+        Graph graph = new Graph(network, factors);
+
+        int[] order = new int[graph.size];
+        int order_length = 0;
+        long max_factor_size = graph.max_factor_size;
+
+        boolean[] remaining = new boolean[graph.size];
+        long[] scores = new long[graph.size];
+        for (int v = 0; v < graph.size; v++) {
+            remaining[v] = to_eliminate[graph.variables[v]];
+            if (remaining[v])
+                scores[v] = graph.score(v, heuristic);
+        }
+
+        BitSet dirty = new BitSet(graph.size);
+        while (true) {
+            // Pick the remaining variable with the lowest score (ties go to the lowest id):
+            int best = -1;
+            for (int v = 0; v < graph.size; v++) {
+                if (remaining[v] && (best == -1 || scores[v] < scores[best]))
+                    best = v;
+            }
+            if (best == -1)
+                break;
+
+            max_factor_size = Math.max(max_factor_size, graph.factorSize(best));
+            order[order_length++] = graph.variables[best];
+            remaining[best] = false;
+
+            // Eliminating a variable connects its neighbors, which changes the scores of everything within two steps:
+            dirty.clear();
+            BitSet neighbors = graph.adjacency[best];
+            for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+                dirty.set(u);
+                dirty.or(graph.adjacency[u]);
+            }
+            graph.eliminate(best);
+
+            for (int u = dirty.nextSetBit(0); u >= 0; u = dirty.nextSetBit(u + 1)) {
+                if (remaining[u])
+                    scores[u] = graph.score(u, heuristic);
+            }
+        }
+
+        return new Plan(Arrays.copyOf(order, order_length), max_factor_size, heuristic);
+    }
+
+    /*
+     * Predicts the largest factor created when eliminating the variables in the given order.
+     */
+    public static long predictMaxFactorSize(CompiledNetwork network, List<Factor> factors, int[] order) {
+        Graph graph = new Graph(network, factors);
+
+        long max_factor_size = graph.max_factor_size;
+        for (int variable: order) {
+            int v = graph.local[variable];
+            if (v == -1 || graph.eliminated[v])
+                continue;
+
+            max_factor_size = Math.max(max_factor_size, graph.factorSize(v));
+            graph.eliminate(v);
+        }
+
+        return max_factor_size;
+    }
+
+    /*
+     * Returns the clique formed when each variable of 'order' is eliminated (the variable and its neighbors at that
+     * moment, as network ids). These are the cliques of the triangulated moral graph, used to build junction trees.
+     */
+    public static List<int[]> eliminationCliques(CompiledNetwork network, List<Factor> factors, int[] order) {
+        Graph graph = new Graph(network, factors);
+
+        List<int[]> cliques = new ArrayList<>();
+        for (int variable: order) {
+            int v = graph.local[variable];
+            if (v == -1 || graph.eliminated[v])
+                continue;
+
+            BitSet neighbors = graph.adjacency[v];
+            int[] clique = new int[neighbors.cardinality() + 1];
+            int i = 0;
+            clique[i++] = variable;
+            for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+                clique[i++] = graph.variables[u];
+            }
+            Arrays.sort(clique);
+            cliques.add(clique);
+
+            graph.eliminate(v);
+        }
+
+        return cliques;
+    }
+
+    /*
+     * The moral graph of the factors over local ids 0..size-1 (variables that appear in no factor are left out).
+     */
+    private static class Graph {
+        final int size;
+        final int[] variables;   // local id -> network id
+        final int[] local;       // network id -> local id (-1 if absent)
+        final int[] cardinalities;
+        final BitSet[] adjacency;
+        final boolean[] eliminated;
+        long max_factor_size = 1;
+
+        Graph(CompiledNetwork network, List<Factor> factors) {
+            this.local = new int[network.size()];
+            Arrays.fill(this.local, -1);
+
+            List<Integer> used = new ArrayList<>();
+            for (Factor factor: factors) {
+                for (BayesianNetworkElement variable: factor.factor_variables) {
+                    if (this.local[variable.id] == -1) {
+                        this.local[variable.id] = used.size();
+                        used.add(variable.id);
+                    }
+                }
+                this.max_factor_size = Math.max(this.max_factor_size, factor.size());
+            }
+
+            this.size = used.size();
+            this.variables = new int[this.size];
+            this.cardinalities = new int[this.size];
+            this.adjacency = new BitSet[this.size];
+            this.eliminated = new boolean[this.size];
+            for (int v = 0; v < this.size; v++) {
+                this.variables[v] = used.get(v);
+                this.cardinalities[v] = network.cardinalities[this.variables[v]];
+                this.adjacency[v] = new BitSet(this.size);
+            }
+
+            // Moralization: the variables of every factor (a CPT's family) become a clique:
+            for (Factor factor: factors) {
+                for (BayesianNetworkElement a: factor.factor_variables) {
+                    for (BayesianNetworkElement b: factor.factor_variables) {
+                        if (a != b)
+                            this.adjacency[this.local[a.id]].set(this.local[b.id]);
+                    }
+                }
+            }
+        }
+
+        /*
+         * Removes a variable and connects all of its neighbors (fill-in edges).
+         */
+        void eliminate(int v) {
+            BitSet neighbors = this.adjacency[v];
+            for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+                this.adjacency[u].or(neighbors);
+                this.adjacency[u].clear(u);
+                this.adjacency[u].clear(v);
+            }
+            neighbors.clear();
+            this.eliminated[v] = true;
+        }
+
+        /*
+         * Size of the factor created by joining every factor that mentions 'v'.
+         */
+        long factorSize(int v) {
+            long product = this.cardinalities[v];
+            BitSet neighbors = this.adjacency[v];
+            for (int u = neighbors.nextSetBit(0); u >= 0; u = neighbors.nextSetBit(u + 1)) {
+                product = saturatedMultiply(product, this.cardinalities[u]);
+            }
+            return product;
+        }
+
+        long score(int v, Heuristic heuristic) {
+            BitSet neighbors = this.adjacency[v];
+            switch (heuristic) {
+                case MIN_DEGREE:
+                    return neighbors.cardinality();
+                case MIN_WEIGHT:
+                    return factorSize(v);
+                default:
+                    break;
+            }
+
+            long fill = 0;
+            for (int a = neighbors.nextSetBit(0); a >= 0; a = neighbors.nextSetBit(a + 1)) {
+                for (int b = neighbors.nextSetBit(a + 1); b >= 0; b = neighbors.nextSetBit(b + 1)) {
+                    if (!this.adjacency[a].get(b)) {
+                        fill += heuristic == Heuristic.WEIGHTED_MIN_FILL
+                                ? (long) this.cardinalities[a] * this.cardinalities[b]
+                                : 1;
+                    }
+                }
+            }
+            return fill;
+        }
+    }
+
+    private static long saturatedMultiply(long a, long b) {
+        long product = a * b;
+        if (a != 0 && (product / a != b || product < 0))
+            return Long.MAX_VALUE;
+        return product;
+    }
+}
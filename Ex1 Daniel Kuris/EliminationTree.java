@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * The elimination of a query as a tree of factor operations ('schedule=parallel').
+ * Eliminating a variable joins every factor that mentions it and sums it out, so the step only depends on the steps
+ * that produced those factors. The tree is built by replaying the sequential elimination on variable sets alone
+ * (same factor list, same order of operands), then the steps run on the common ForkJoinPool: independent branches
+ * (disconnected components, separate subtrees) proceed concurrently and only meet at the query variable's factor.
+ * Each step joins its operands in the same order as the sequential loop and counts on its own counter, so results
+ * and operation counts are identical to the sequential elimination.
+ */
+public class EliminationTree {
+    /*
+     * A built factor (leaf) or the elimination of 'variable' from the join of 'inputs'.
+     */
+    private static final class Node {
+        final Factor leaf;
+        final int variable;
+        final boolean sum_out;
+        final List<Node> inputs;
+        final BitSet variables;
+        long size;
+
+        // Set once the node ran:
+        Factor factor;
+        MathematicalOperationsCounter counter;
+
+        Node(Factor leaf) {
+            this.leaf = leaf;
+            this.factor = leaf;
+            this.variable = -1;
+            this.sum_out = false;
+            this.inputs = null;
+            this.variables = new BitSet();
+            for (BayesianNetworkElement element: leaf.factor_variables) {
+                this.variables.set(element.id);
+            }
+            this.size = leaf.size();
+        }
+
+        Node(CompiledNetwork network, int variable, boolean sum_out, List<Node> inputs) {
+            this.leaf = null;
+            this.variable = variable;
+            this.sum_out = sum_out;
+            this.inputs = inputs;
+            this.variables = new BitSet();
+            for (Node input: inputs) {
+                this.variables.or(input.variables);
+            }
+            if (sum_out)
+                this.variables.clear(variable);
+
+            this.size = 1;
+            for (int id = this.variables.nextSetBit(0); id >= 0; id = this.variables.nextSetBit(id + 1)) {
+                this.size = Math.min(this.size * network.cardinalities[id], Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    private final List<Node> remaining;   // factors left after the elimination, in the sequential list order
+    private final List<Node> roots;       // steps no other step consumes: the query's step and dropped results
+
+    private EliminationTree(List<Node> remaining, List<Node> roots) {
+        this.remaining = remaining;
+        this.roots = roots;
+    }
+
+    /*
+     * Builds the tree that eliminates 'order' from 'factors' and joins what is left on 'query'.
+     */
+    public static EliminationTree build(CompiledNetwork network, List<Factor> factors, List<Integer> order, int query) {
+        List<Node> current = new ArrayList<>();
+        for (Factor factor: factors) {
+            current.add(new Node(factor));
+        }
+
+        List<Node> roots = new ArrayList<>();
+        for (int variable: order) {
+            List<Node> inputs = removeMentioning(current, variable);
+            if (inputs.isEmpty())
+                continue;
+
+            // A result without free variables is dropped (like removeEmptyFactors), but its operations still count
+            Node step = new Node(network, variable, true, inputs);
+            if (step.size <= 1) {
+                roots.add(step);
+            } else {
+                current.add(step);
+            }
+        }
+
+        // Steps left over (not mentioning the query) are not consumed by anything either:
+        List<Node> inputs = removeMentioning(current, query);
+        for (Node node: current) {
+            if (node.leaf == null)
+                roots.add(node);
+        }
+        Node final_step = new Node(network, query, false, inputs);
+        roots.add(final_step);
+        current.add(final_step);
+
+        return new EliminationTree(current, roots);
+    }
+
+    /*
+     * Runs every step and returns the factors left after the elimination (the query variable's joined factor last),
+     * like the factor list at the end of the sequential loop. The operations are added to 'counter'.
+     */
+    public List<Factor> run(FactorStorage storage, FactorCache cache, MathematicalOperationsCounter counter) {
+        List<StepTask> tasks = new ArrayList<>();
+        for (Node root: this.roots) {
+            tasks.add(new StepTask(root, storage, cache, counter.profile != null));
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            protected void compute() {
+                ForkJoinTask.invokeAll(tasks);
+            }
+        });
+
+        // Workers counted on their own counters, which are only added up here:
+        for (Node root: this.roots) {
+            addCounts(root, counter);
+        }
+
+        List<Factor> factors = new ArrayList<>();
+        for (Node node: this.remaining) {
+            if (node.factor != null)
+                factors.add(node.factor);
+        }
+        return factors;
+    }
+
+    private static void addCounts(Node node, MathematicalOperationsCounter counter) {
+        if (node.leaf != null)
+            return;
+        for (Node input: node.inputs) {
+            addCounts(input, counter);
+        }
+        counter.additions(node.counter.addition_counter);
+        counter.multiplications(node.counter.multiplication_counter);
+        counter.cache_hits += node.counter.cache_hits;
+        counter.cache_misses += node.counter.cache_misses;
+        if (counter.profile != null)
+            counter.profile.add(node.counter.profile);
+    }
+
+    private static List<Node> removeMentioning(List<Node> nodes, int variable) {
+        List<Node> mentioning = new ArrayList<>();
+        for (Node node: nodes) {
+            if (node.variables.get(variable))
+                mentioning.add(node);
+        }
+        nodes.removeAll(mentioning);
+        return mentioning;
+    }
+
+    /*
+     * Runs the steps below a node (all but one forked), then the node itself.
+     */
+    private static final class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final FactorStorage storage;
+        private final FactorCache cache;
+        private final boolean profiled;   // whether the query records a QueryProfile
+
+        StepTask(Node node, FactorStorage storage, FactorCache cache, boolean profiled) {
+            this.node = node;
+            this.storage = storage;
+            this.cache = cache;
+            this.profiled = profiled;
+        }
+
+        protected void compute() {
+            List<StepTask> children = new ArrayList<>();
+            for (Node input: this.node.inputs) {
+                if (input.leaf == null)
+                    children.add(new StepTask(input, this.storage, this.cache, this.profiled));
+            }
+            invokeAll(children);
+
+            List<Factor> factors = new ArrayList<>();
+            for (Node input: this.node.inputs) {
+                factors.add(input.factor);
+            }
+
+            MathematicalOperationsCounter counter = new MathematicalOperationsCounter();
+            if (this.profiled)
+                counter.profile = new QueryProfile(null);
+            VariableElimination.joinFactors(factors, this.node.variable, this.storage, this.cache, counter);
+            if (this.node.sum_out) {
+                VariableElimination.eliminateVariable(factors, this.node.variable, this.storage, this.cache, counter);
+                VariableElimination.removeEmptyFactors(factors);
+            }
+
+            this.node.counter = counter;
+            this.node.factor = factors.isEmpty() ? null : factors.get(0);
+        }
+    }
+}
@@ -1,112 +1,460 @@
+import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Scanner;
-import javax.xml.parsers.ParserConfigurationException;
-import org.xml.sax.SAXException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import javax.xml.stream.XMLStreamException;
 
 public class Ex1 {
-    public static void main(String[] args) throws IOException, ParserConfigurationException, SAXException {
+    private static final long DEFAULT_FACTOR_CACHE_CELLS = 1L << 22;
+    private static final int DEFAULT_RESULT_CACHE_ENTRIES = 1 << 16;
+    private static final int DEFAULT_STREAM_WINDOW = 1 << 10;
+
+    // Report what the pruning stage removed for every VE query on stderr ('--prune-stats'):
+    private static boolean print_prune_stats = false;
+
+    // Report the error of every 'storage=float' VE query against double precision on stderr ('--storage-stats'):
+    private static boolean print_storage_stats = false;
+
+    // Report the peak off-heap bytes of every VE query on stderr ('--off-heap-stats'):
+    private static boolean print_off_heap_stats = false;
+
+    // Report why a query line was answered with "error" on stderr ('--query-errors'):
+    private static boolean print_query_errors = false;
+
+    // Report the variables, cells, bytes and time of parsing an XML network on stderr ('--parse-stats'):
+    private static boolean print_parse_stats = false;
+
+    // Report the hits and misses of the network's caches on stderr once all queries are answered ('--cache-stats'):
+    private static boolean print_cache_stats = false;
+
+    // Receives a profile of every query ('--profile json|csv' and '--profile-queries'; see configure):
+    private static Instrumentation instrumentation = Instrumentation.NONE;
+    private static String profile_format = null;
+
+    public static void main(String[] args) throws IOException, XMLStreamException, InterruptedException {
+        if (args.length > 0 && args[0].equals("convert")) {
+            convert(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("loadgen")) {
+            loadgen(args);
+            return;
+        }
+
+        // With '--stream' the queries are read, answered and written one at a time instead of all at once:
+        boolean stream = Arrays.asList(args).contains("--stream");
+
         // Load input file:
-        FileReader input_file = new FileReader("input.txt");
-        Scanner scanner = new Scanner(input_file);
+        BufferedReader input = new BufferedReader(new FileReader("input.txt"));
 
-        String network_file = scanner.nextLine();
+        String network_file = input.readLine();
 
         List<String> queries = new ArrayList<>();
-        while (scanner.hasNextLine()) {
-            queries.add(scanner.nextLine().trim()); // Trim to handle any leading/trailing whitespace
+        String line;
+        while (!stream && (line = input.readLine()) != null) {
+            queries.add(line.trim()); // Trim to handle any leading/trailing whitespace
         }
-        scanner.close();
 
-        // Parse network XML file:
-        List<BayesianNetworkElement> network = BayesianNetworkTools.parseNetwork(network_file);
+        // Load the network (XML or binary snapshot) and compile it into its integer-indexed form:
+        configure(args);
+        CompiledNetwork network = loadNetwork(network_file);
+        configureCaches(network, args);
 
-        // Handle queries:
-        StringBuilder output = new StringBuilder();
-        for (String query : queries) {
-            char mode = determineMode(query);
-
-            MathematicalOperationsCounter counter = new MathematicalOperationsCounter();
-            double result = 0;
-            boolean independent = false;
-
-            if (mode == '1') {
-                // VE query handling
-                String request_left = extractVELeft(query);
-                String request_right = extractVERight(query);
-                String eliminationOrder = extractVEEliminationOrder(query);
-
-                result = VariableElimination.calculateCPT(network, request_left, request_right, eliminationOrder, counter);
-                output.append(String.format("%.5f,%d,%d\n", result, counter.addition_counter, counter.multiplication_counter));
-            } else if (mode == '2') {
-                // BayesBall query handling
-                String request_left = extractBBLeft(query);
-                String request_right = extractBBRight(query);
-
-                // BayesBall method returns a result as String indicating independence
-                independent = BayesBall.runBayesBall(network, request_left, request_right);
-
-                // Append the result to output format
-                output.append(independent ? "yes\n" : "no\n");
-            } else {
-                // Handle unknown mode 
-                output.append("error\n");
+        if (stream) {
+            streamQueries(network, input, args);
+            writeProfile();
+            printCacheStats(network);
+            return;
+        }
+        input.close();
+
+        // Handle queries (on a thread pool when '--threads' is given; results keep the input order):
+        String[] results = new String[queries.size()];
+        ExecutorService executor = createExecutor(optionValue(args, "--threads"));
+        if (executor == null) {
+            for (int i = 0; i < queries.size(); i++) {
+                results[i] = memoizedQuery(network, queries.get(i)).get();
             }
+        } else {
+            try {
+                List<Future<String>> futures = new ArrayList<>(queries.size());
+                for (String query : queries) {
+                    // Reserved here, in input order, so a duplicate always reports the counts of its first occurrence
+                    Supplier<String> answer = memoizedQuery(network, query);
+                    futures.add(executor.submit(answer::get));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    results[i] = futures.get(i).get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        StringBuilder output = new StringBuilder();
+        for (String result : results) {
+            output.append(result).append('\n');
         }
 
         // Write output to file:
         FileWriter fw = new FileWriter("output.txt");
         fw.write(output.toString().trim()); // trim to remove any trailing newline
         fw.close();
+
+        writeProfile();
+        printCacheStats(network);
+    }
+
+    // Function to give a network its caches ('--factor-cache <cells>', '--result-cache <entries>')
+    private static void configureCaches(CompiledNetwork network, String[] args) {
+        // Reuse reduced CPTs and intermediate factors across queries ('--factor-cache <cells>', 0 disables it):
+        String factor_cache = optionValue(args, "--factor-cache");
+        long factor_cache_cells = factor_cache == null ? DEFAULT_FACTOR_CACHE_CELLS : Long.parseLong(factor_cache);
+        if (factor_cache_cells > 0)
+            network.factor_cache = new FactorCache(factor_cache_cells);
+
+        // Answer duplicate queries (up to evidence order, whitespace and elimination order) once ('--result-cache <entries>'):
+        String result_cache = optionValue(args, "--result-cache");
+        int result_cache_entries = result_cache == null ? DEFAULT_RESULT_CACHE_ENTRIES : Integer.parseInt(result_cache);
+        if (result_cache_entries > 0)
+            network.result_cache = new QueryResultCache(result_cache_entries);
+    }
+
+    // Function to apply the options shared by every query (table thresholds and statistics)
+    private static void configure(String[] args) {
+        // Factor tables of at least this many cells are allocated off-heap ('--off-heap-threshold <cells>', 0 disables it):
+        String off_heap_threshold = optionValue(args, "--off-heap-threshold");
+        if (off_heap_threshold != null)
+            FactorStorage.default_off_heap_threshold = Long.parseLong(off_heap_threshold);
+
+        // Joins and sum-outs with at least this many result cells run on all cores ('--parallel-threshold <cells>', 0 disables it):
+        String parallel_threshold = optionValue(args, "--parallel-threshold");
+        if (parallel_threshold != null)
+            Factor.parallel_threshold = Integer.parseInt(parallel_threshold);
+
+        print_prune_stats = Arrays.asList(args).contains("--prune-stats");
+        print_off_heap_stats = Arrays.asList(args).contains("--off-heap-stats");
+        print_storage_stats = Arrays.asList(args).contains("--storage-stats");
+        print_query_errors = Arrays.asList(args).contains("--query-errors");
+        print_parse_stats = Arrays.asList(args).contains("--parse-stats");
+        print_cache_stats = Arrays.asList(args).contains("--cache-stats");
+
+        // Record where every query spends its time and memory: '--profile json|csv' writes the aggregate histograms to
+        // profile.json / profile.csv and every query's profile to profile-queries.json / profile-queries.csv next to
+        // output.txt, '--profile-queries' prints every query's report on stderr
+        profile_format = optionValue(args, "--profile");
+        if (profile_format != null && !profile_format.equals("json") && !profile_format.equals("csv"))
+            throw new IllegalArgumentException("Unknown profile format '" + profile_format + "' (json or csv)");
+        boolean print_profiles = Arrays.asList(args).contains("--profile-queries");
+        if (profile_format != null || print_profiles)
+            instrumentation = new ProfileCollector(print_profiles, profile_format != null);
+    }
+
+    // Function to write the aggregate and the per-query profiles next to output.txt (when '--profile' is given)
+    private static void writeProfile() throws IOException {
+        if (profile_format != null) {
+            ProfileCollector collector = (ProfileCollector) instrumentation;
+            collector.write("profile." + profile_format, profile_format);
+            collector.writeQueries("profile-queries." + profile_format, profile_format);
+        }
+    }
+
+    // Function to print the cache statistics of a network (when '--cache-stats' is given)
+    private static void printCacheStats(CompiledNetwork network) {
+        if (!print_cache_stats)
+            return;
+        if (network.factor_cache != null)
+            System.err.println(network.factor_cache.report());
+        if (network.result_cache != null)
+            System.err.println(network.result_cache.report());
+    }
+
+    // Function to run the inference server: serve --network <file> [--network <file> ...] [--port <port>]
+    // The networks are loaded once and their caches stay warm across connections (see InferenceServer).
+    private static void serve(String[] args) throws IOException, XMLStreamException {
+        configure(args);
+        Map<String, CompiledNetwork> networks = new LinkedHashMap<>();
+        for (String network_file : optionValues(args, "--network")) {
+            CompiledNetwork network = loadNetwork(network_file);
+            configureCaches(network, args);
+            networks.put(Paths.get(network_file).getFileName().toString(), network);
+        }
+        if (networks.isEmpty()) {
+            System.err.println("usage: Ex1 serve --network <network> [--network <network> ...] [--port <port>]");
+            return;
+        }
+
+        String port = optionValue(args, "--port");
+        try (InferenceServer server = new InferenceServer(networks, port == null ? InferenceServer.DEFAULT_PORT : Integer.parseInt(port), Ex1::memoizedQuery)) {
+            String window = optionValue(args, "--window");
+            if (window != null)
+                server.window = Integer.parseInt(window);
+            System.out.println("serving " + networks.keySet() + " on 127.0.0.1:" + server.port());
+            server.serve();
+        }
+    }
+
+    // Function to run the load generator: loadgen [--port <port>] [--input <file>] [--connections <n>] [--requests <n>] [--depth <n>]
+    // Without '--port' it serves the input's network in-process on a free port.
+    private static void loadgen(String[] args) throws IOException, XMLStreamException, InterruptedException {
+        String input = optionValue(args, "--input");
+        List<String> lines = LoadGenerator.readInput(input == null ? "input.txt" : input);
+
+        LoadGenerator generator = new LoadGenerator();
+        generator.queries = lines.subList(1, lines.size());
+        String connections = optionValue(args, "--connections");
+        if (connections != null)
+            generator.connections = Integer.parseInt(connections);
+        String requests = optionValue(args, "--requests");
+        if (requests != null)
+            generator.requests = Integer.parseInt(requests);
+        String depth = optionValue(args, "--depth");
+        if (depth != null)
+            generator.depth = Integer.parseInt(depth);
+
+        InferenceServer server = null;
+        String port = optionValue(args, "--port");
+        if (port == null) {
+            configure(args);
+            CompiledNetwork network = loadNetwork(lines.get(0));
+            configureCaches(network, args);
+            Map<String, CompiledNetwork> networks = new LinkedHashMap<>();
+            networks.put(Paths.get(lines.get(0)).getFileName().toString(), network);
+            server = new InferenceServer(networks, 0, Ex1::memoizedQuery);
+            InferenceServer serving = server;
+            Thread acceptor = new Thread(() -> {
+                try {
+                    serving.serve();
+                } catch (IOException e) {
+                    System.err.println("server failed: " + e);
+                }
+            }, "server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            generator.port = server.port();
+        } else {
+            generator.port = Integer.parseInt(port);
+            String host = optionValue(args, "--host");
+            if (host != null)
+                generator.host = host;
+        }
+
+        try {
+            long start = System.nanoTime();
+            long[] latencies = generator.run();
+            System.out.println(generator.report(latencies, System.nanoTime() - start));
+        } finally {
+            if (server != null)
+                server.close();
+        }
     }
 
-    // Function to determine if query is VE ('1') or BayesBall ('2')
-    private static char determineMode(String query) {
-        if (query.startsWith("P(")) {
-            return '1'; // VE mode
+    // Function to answer the remaining input lines through a bounded pipeline, writing each result as soon as it and
+    // every result before it are ready ('--stream-window <queries>' bounds the queries in flight)
+    private static void streamQueries(CompiledNetwork network, BufferedReader input, String[] args) throws IOException, InterruptedException {
+        String window = optionValue(args, "--stream-window");
+        ExecutorService executor = createExecutor(optionValue(args, "--threads"));
+        if (executor == null)
+            executor = Executors.newSingleThreadExecutor(); // Still overlaps reading and writing with the queries
+
+        QueryPipeline pipeline = new QueryPipeline(executor, window == null ? DEFAULT_STREAM_WINDOW : Integer.parseInt(window),
+                query -> memoizedQuery(network, query));
+        try (BufferedReader lines = input; Writer output = QueryPipeline.openOutput("output.txt")) {
+            pipeline.run(lines, output);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Function to get the answer of a query line through the network's result cache (when it has one)
+    static Supplier<String> memoizedQuery(CompiledNetwork network, String query) {
+        // Parse and validate the line once; the cache and the engines only see ids
+        CompiledQuery compiled = QueryParser.parse(network, query);
+        QueryProfile profile = instrumentation.begin(compiled.text);
+        Supplier<String> answer = () -> answerQuery(network, compiled, profile);
+        QueryResultCache cache = network.result_cache;
+        Supplier<String> result = cache == null || !compiled.isValid() ? answer : cache.memoize(compiled, answer);
+        return profile == null ? result : profiled(result, profile);
+    }
+
+    // Function to time a query's answer and hand its profile to the instrumentation once the answer is ready
+    private static Supplier<String> profiled(Supplier<String> answer, QueryProfile profile) {
+        return () -> {
+            long start = System.nanoTime();
+            try {
+                return answer.get();
+            } finally {
+                profile.nanos = System.nanoTime() - start;
+                profile.result_cache_hit = profile.engine == null; // another query's computation answered it
+                instrumentation.end(profile);
+            }
+        };
+    }
+
+    // Function to answer a single compiled query. It only reads the shared network, so queries may run concurrently.
+    // 'profile' (may be null) receives the query's recordings.
+    static String answerQuery(CompiledNetwork network, CompiledQuery compiled, QueryProfile profile) {
+        String query = compiled.text;
+        MathematicalOperationsCounter counter = new MathematicalOperationsCounter();
+        counter.profile = profile;
+
+        if (compiled.kind == CompiledQuery.Kind.PROBABILITY) {
+            // VE query handling
+            QueryOptions options = compiled.options;
+            if (profile != null)
+                profile.engine = options.engine;
+
+            if (options.engine.equals(QueryOptions.ENGINE_LW) || options.engine.equals(QueryOptions.ENGINE_GIBBS)) {
+                // Approximate answer: the estimate, its 95% confidence interval and the samples drawn
+                ApproximateInference.Estimate estimate = ApproximateInference.calculateCPT(network, compiled, counter);
+                return String.format("%.5f,%.5f,%.5f,%d", estimate.probability, estimate.lower, estimate.upper, estimate.samples);
+            }
+
+            if (options.max_factor_cells > 0) {
+                // Reject a query whose elimination would create a factor above its limit before running it
+                long predicted = VariableElimination.planElimination(network, compiled).max_factor_size;
+                if (predicted > options.max_factor_cells) {
+                    if (print_query_errors)
+                        System.err.println(query + ": largest factor would have " + predicted + " cells, above max-factor=" + options.max_factor_cells);
+                    return "error";
+                }
+            }
+
+            double result;
+            if (options.engine.equals(QueryOptions.ENGINE_JT)) {
+                result = network.junctionTree().calculateCPT(compiled, counter);
+            } else if (options.engine.equals(QueryOptions.ENGINE_ENUMERATION)) {
+                // The full-joint reference answer, to check the other engines against
+                result = BayesianNetworkTools.calculateCPT(network, compiled, options.arithmetic.equals(QueryOptions.ARITHMETIC_LOG),
+                        options.schedule.equals(QueryOptions.SCHEDULE_PARALLEL), counter);
+            } else {
+                result = VariableElimination.calculateCPT(network, compiled, counter);
+            }
+            if (profile != null) {
+                profile.factor_cache_hits = counter.cache_hits;
+                profile.factor_cache_misses = counter.cache_misses;
+            }
+            if (print_prune_stats && counter.pruning != null)
+                System.err.println(query + ": " + counter.pruning.report());
+            if (print_off_heap_stats && options.engine.equals(QueryOptions.ENGINE_VE))
+                System.err.println(query + ": peak off-heap " + counter.peak_off_heap_bytes + " bytes");
+            if (print_storage_stats && options.storage.equals(FactorStorage.FLOAT)) {
+                // Measure against the same query in double precision:
+                double reference = VariableElimination.calculateCPT(network, compiled.withOptions(new QueryOptions()), new MathematicalOperationsCounter());
+                System.err.println(String.format("%s: float storage error %.3g (bound %.3g)", query,
+                        Math.abs(result - reference) / reference, counter.error_bound));
+            }
+            return String.format("%.5f,%d,%d", result, counter.addition_counter, counter.multiplication_counter);
+        } else if (compiled.kind == CompiledQuery.Kind.INDEPENDENCE_BATCH) {
+            // One-to-many and many-to-many queries (A-*|E, A,B-C,D|E) are answered with one traversal per source
+            if (profile != null)
+                profile.engine = "bayes-ball";
+            return BayesBall.runBayesBallBatch(network, compiled, profile);
+        } else if (compiled.kind == CompiledQuery.Kind.INDEPENDENCE) {
+            // BayesBall method returns a result as String indicating independence
+            if (profile != null)
+                profile.engine = "bayes-ball";
+            boolean independent = BayesBall.runBayesBall(network, compiled, profile);
+            return independent ? "yes" : "no";
         } else {
-            return '2'; // BayesBall mode
+            // Handle malformed queries and unknown variables or outcomes
+            if (profile != null)
+                profile.engine = "error";
+            if (print_query_errors)
+                System.err.println(query + ": " + compiled.error);
+            return "error";
         }
     }
 
-    // Function to extract VE left request (before '|')
-    private static String extractVELeft(String query) {
-        // Extract the content between "P(" and "|"
-        int startIndex = query.indexOf("P(") + 2;
-        int endIndex = query.indexOf("|");
-        return query.substring(startIndex, endIndex);
+    // Function to create the executor for '--threads <count>' or '--threads virtual' (null means run sequentially)
+    private static ExecutorService createExecutor(String threads) {
+        if (threads == null)
+            return null;
+
+        if (threads.equals("virtual")) {
+            // Virtual threads need Java 21; older runtimes fall back to one pool thread per core.
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            }
+        }
+
+        int count = Integer.parseInt(threads);
+        return count > 1 ? Executors.newFixedThreadPool(count) : null;
     }
 
-    // Function to extract VE right request (after '|')
-    private static String extractVERight(String query) {
-        // Extract the content between "|" and ")"
-        int startIndex = query.indexOf("|") + 1;
-        int endIndex = query.indexOf(")");
-        return query.substring(startIndex, endIndex);
+    // Function to read the value following an option such as '--threads' (null when the option is absent)
+    private static String optionValue(String[] args, String option) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(option))
+                return args[i + 1];
+        }
+        return null;
     }
 
-    // Function to extract VE elimination order (after whole query)
-    private static String extractVEEliminationOrder(String query) {
-        // Extract the content after the closing ")"
-        int startIndex = query.indexOf(")") + 1;
-        String eliminationOrderString = query.substring(startIndex).trim(); // Trim to remove leading/trailing spaces
-        return eliminationOrderString;
+    // Function to read every value of an option that may be repeated, such as '--network'
+    private static List<String> optionValues(String[] args, String option) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(option))
+                values.add(args[++i]);
+        }
+        return values;
     }
 
-    // Function to extract BayesBall left request (before '|')
-    private static String extractBBLeft(String query) {
-        // Extract the content before "|"
-        int endIndex = query.indexOf("|");
-        return query.substring(0, endIndex).trim(); // Trim to remove any extra spaces
+    // Function to load a network from either an XMLBIF file or a binary snapshot
+    private static CompiledNetwork loadNetwork(String network_file) throws IOException, XMLStreamException {
+        if (NetworkSnapshot.isSnapshot(network_file)) {
+            NetworkSnapshot snapshot = NetworkSnapshot.load(network_file);
+            return new CompiledNetwork(snapshot.network, snapshot.tables);
+        }
+
+        // Parse network XML file (single streaming pass):
+        StreamingNetworkParser parser = new StreamingNetworkParser();
+        CompiledNetwork network = new CompiledNetwork(parser.parse(network_file));
+        if (print_parse_stats)
+            System.err.println(network_file + ": " + parser.report());
+        return network;
     }
 
-    // Function to extract BayesBall right request (after '|')
-    private static String extractBBRight(String query) {
-        // Extract the content after "|"
-        int startIndex = query.indexOf("|") + 1;
-        return query.substring(startIndex).trim(); // Trim to remove any extra spaces
+    // Function to convert an XMLBIF network into a binary snapshot: convert <network.xml> <snapshot>
+    private static void convert(String[] args) throws IOException, XMLStreamException {
+        if (args.length != 3) {
+            System.err.println("usage: Ex1 convert <network.xml> <snapshot>");
+            return;
+        }
+
+        StreamingNetworkParser parser = new StreamingNetworkParser();
+        CompiledNetwork network = new CompiledNetwork(parser.parse(args[1]));
+        NetworkSnapshot.write(network, args[2]);
+
+        System.out.println(parser.report());
+        System.out.println("wrote " + args[2] + " (" + Files.size(Paths.get(args[2])) + " bytes)");
     }
 }
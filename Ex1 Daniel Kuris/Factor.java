@@ -1,191 +1,518 @@
+import java.nio.DoubleBuffer;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 /*
- * The following class represents
+ * The following class represents a factor over a set of network variables.
+ * The table is stored flat in row-major order (the last variable changes fastest), as doubles or floats depending on
+ * the query's FactorStorage, and every operation walks it with index arithmetic over the variables' cardinalities
+ * and strides.
+ * In log space the table holds natural logarithms: joins add and sum-outs use log-sum-exp, so products of many small
+ * probabilities do not underflow. Operations are counted the same way in both modes.
+ * Joins and sum-outs whose result has at least 'parallel_threshold' cells split the result into contiguous ranges
+ * computed on the common ForkJoinPool. Every cell is computed exactly as in the sequential loop, so results are
+ * bit-identical, and the operation counts are added to the counter once per factor.
+ * When the operands and the result are all heap double tables (the default storage), the kernels work on their
+ * arrays directly; other tables go through FactorTable.get/set, whose call sites turn megamorphic once a process has
+ * used several kinds of tables.
  */
 public class Factor {
+    // Smallest result table computed in parallel ('--parallel-threshold <cells>' in Ex1, 0 disables it):
+    public static volatile int parallel_threshold = 1 << 18;
+
+    // Smallest range handed to a single task:
+    private static final int MIN_RANGE = 1 << 14;
+
     List<BayesianNetworkElement> factor_variables;
-    List<Double> values;
+    FactorTable table;
+    int[] cardinalities;
+    int[] strides;
+    boolean log_space;
+
+    // Bound on the relative error of every cell caused by storing cells in single precision (0 for doubles):
+    double error_bound;
+
+    // How the factor was built (set when a FactorCache is in use) and the operations spent building it:
+    String key;
+    // Set once the factor is in a FactorCache: other queries may share it, so its table is never released
+    volatile boolean cached;
+    int additions;
+    int multiplications;
 
     /*
      * Creates a completely new factor that 'represents' and element.
+     * 'evidence' holds the observed outcome id of every variable in the network, or -1 if it is not observed.
      */
-    public Factor(List<BayesianNetworkElement> network, BayesianNetworkElement element, List<String> evidence) {
-        // Indicate up all free variables that are used in this factor:
-        List<BayesianNetworkElement> variables = new ArrayList<>(element.given);
-        variables.add(element);
+    public Factor(CompiledNetwork network, BayesianNetworkElement element, int[] evidence) {
+        this(network, element, evidence, false);
+    }
 
-        this.factor_variables = new ArrayList<>();
+    /*
+     * Same as above, with the table stored as logarithms when 'log_space' is set.
+     */
+    public Factor(CompiledNetwork network, BayesianNetworkElement element, int[] evidence, boolean log_space) {
+        this(network, element, evidence, log_space, FactorStorage.HEAP);
+    }
 
-        List<String> evidence_name = new ArrayList<>();
-        for (String variable: evidence) {
-            evidence_name.add(variable.split("=")[0]);
+    /*
+     * Same as above, with the table held by the given storage.
+     */
+    public Factor(CompiledNetwork network, BayesianNetworkElement element, int[] evidence, boolean log_space, FactorStorage storage) {
+        this.log_space = log_space;
+
+        // Indicate up all free variables that are used in this factor:
+        int[] family = network.parents[element.id];
+        int[] cpt_strides = network.cpt_strides[element.id];
+
+        this.factor_variables = new ArrayList<>(family.length + 1);
+        for (int i = 0; i <= family.length; i++) {
+            int variable = i < family.length ? family[i] : element.id;
+            if (evidence[variable] == -1)
+                this.factor_variables.add(network.element(variable));
         }
-        for (BayesianNetworkElement variable: variables) {
-            if (!evidence_name.contains(variable.name)) {
-                factor_variables.add(variable);
+
+        // Sorting variables by network order for consistent order:
+        sortByNetworkOrder(this.factor_variables);
+        allocate(storage);
+        this.error_bound = storage.rounding();
+
+        // Evidence variables are fixed, so they only contribute a constant offset (the CPT is reduced):
+        int base_offset = 0;
+        int[] variable_cpt_strides = new int[this.factor_variables.size()];
+        for (int i = 0; i <= family.length; i++) {
+            int variable = i < family.length ? family[i] : element.id;
+            if (evidence[variable] != -1) {
+                base_offset += cpt_strides[i] * evidence[variable];
+            } else {
+                variable_cpt_strides[this.factor_variables.indexOf(network.element(variable))] = cpt_strides[i];
             }
         }
 
+        DoubleBuffer cpt = network.tables[element.id];
+        int[] assignment = new int[this.factor_variables.size()];
+        int cpt_offset = base_offset;
+        for (int i = 0; i < this.table.length(); i++) {
+            this.table.set(i, log_space ? Math.log(cpt.get(cpt_offset)) : cpt.get(cpt_offset));
+            cpt_offset = increment(assignment, this.cardinalities, variable_cpt_strides, cpt_offset);
+        }
+    }
+
+    /*
+     * Creates a factor over the given variables with every entry set to 1 (a neutral element for joins).
+     */
+    public Factor(List<BayesianNetworkElement> variables) {
+        this.factor_variables = new ArrayList<>(variables);
+
         // Sorting variables by network order for consistent order:
-        Collections.sort(this.factor_variables, new Comparator<BayesianNetworkElement>() {
-            public int compare(BayesianNetworkElement left, BayesianNetworkElement right) {
-                return Integer.compare(network.indexOf(left), network.indexOf(right));
-            }
-        });
+        sortByNetworkOrder(this.factor_variables);
+        allocate(FactorStorage.HEAP);
+        this.table.fill(1);
+    }
+
+    /*
+     * Creates a factor by joining two existing factors.
+     */
+    public Factor(Factor a, Factor b, MathematicalOperationsCounter counter) {
+        this(a, b, FactorStorage.HEAP, counter);
+    }
 
-        // Get all possible outcomes:
-        List<String> outcomes = BayesianNetworkTools.defineOutcomes(network, evidence);
-        List<List<String>> variable_outcomes = new ArrayList<>();
-        for (String outcome: outcomes) {
-            List<String> variable_outcome = new ArrayList<>();
-            for (BayesianNetworkElement variable: variables) {
-                variable_outcome.add(outcome.split(",")[network.indexOf(variable)]);
+    /*
+     * Same as above, with the result held by the given storage.
+     */
+    public Factor(Factor a, Factor b, FactorStorage storage, MathematicalOperationsCounter counter) {
+        long start = counter.profile == null ? 0 : System.nanoTime();
+        if (a.log_space != b.log_space)
+            throw new IllegalArgumentException("Cannot join a log-space factor with a linear one");
+        this.log_space = a.log_space;
+
+        // Both operands are sorted by network order, so their union is a merge:
+        this.factor_variables = new ArrayList<>(a.factor_variables.size() + b.factor_variables.size());
+        int i_a = 0;
+        int i_b = 0;
+        while (i_a < a.factor_variables.size() || i_b < b.factor_variables.size()) {
+            int id_a = i_a < a.factor_variables.size() ? a.factor_variables.get(i_a).id : Integer.MAX_VALUE;
+            int id_b = i_b < b.factor_variables.size() ? b.factor_variables.get(i_b).id : Integer.MAX_VALUE;
+            if (id_a <= id_b) {
+                this.factor_variables.add(a.factor_variables.get(i_a++));
+                if (id_a == id_b)
+                    i_b++;
+            } else {
+                this.factor_variables.add(b.factor_variables.get(i_b++));
             }
-            variable_outcomes.add(variable_outcome);
         }
+        allocate(storage);
 
-        // removes duplicates:
-        variable_outcomes = variable_outcomes.stream().distinct().collect(Collectors.toList());
+        // Strides of each operand aligned to this factor's variables (0 when the operand lacks the variable):
+        int[] a_strides = alignedStrides(a);
+        int[] b_strides = alignedStrides(b);
+        FactorTable table = this.table;
 
-        // Get appropriate values for the factor's table based on the outcomes:
-        this.values = new ArrayList<>();
-        for (List<String> outcome: variable_outcomes) {
-            this.values.add(element.getCptValue(outcome));
+        if (table instanceof FactorTable.Doubles && a.table instanceof FactorTable.Doubles && b.table instanceof FactorTable.Doubles) {
+            double[] cells = ((FactorTable.Doubles) table).cells;
+            double[] a_cells = ((FactorTable.Doubles) a.table).cells;
+            double[] b_cells = ((FactorTable.Doubles) b.table).cells;
+            forEachRange(table.length(), (from, to) -> joinRange(a_cells, b_cells, cells, a_strides, b_strides, from, to));
+        } else {
+            forEachRange(table.length(), (from, to) -> joinRange(a.table, b.table, a_strides, b_strides, from, to));
         }
+
+        // Relative errors of a product add up, plus the rounding of the stored result:
+        this.error_bound = (1 + a.error_bound) * (1 + b.error_bound) * (1 + storage.rounding()) - 1;
+
+        this.multiplications = table.length();
+        counter.multiplications(this.multiplications);
+        if (counter.profile != null)
+            counter.profile.join(table.length(), System.nanoTime() - start);
     }
 
     /*
-     * Creates a factor by joining two existing factors.
+     * Creates a factor from another factor but removes a variable.
+     */
+    public Factor(Factor a, int variable_to_eliminate, MathematicalOperationsCounter counter) {
+        this(a, variable_to_eliminate, FactorStorage.HEAP, counter);
+    }
+
+    /*
+     * Same as above, with the result held by the given storage.
      */
-    public Factor(List<BayesianNetworkElement> network, Factor a, Factor b, MathematicalOperationsCounter counter) {
+    public Factor(Factor a, int variable_to_eliminate, FactorStorage storage, MathematicalOperationsCounter counter) {
+        long start = counter.profile == null ? 0 : System.nanoTime();
+        this.log_space = a.log_space;
         this.factor_variables = new ArrayList<>(a.factor_variables);
-        for (BayesianNetworkElement variable: b.factor_variables) {
-            if (!a.factor_variables.contains(variable))
-                this.factor_variables.add(variable);
+
+        int eliminated_variable_index = a.indexOf(variable_to_eliminate);
+        this.factor_variables.remove(eliminated_variable_index);
+        allocate(storage);
+
+        int eliminated_cardinality = a.cardinalities[eliminated_variable_index];
+        int eliminated_stride = a.strides[eliminated_variable_index];
+
+        if (this.table instanceof FactorTable.Doubles && a.table instanceof FactorTable.Doubles) {
+            double[] cells = ((FactorTable.Doubles) this.table).cells;
+            double[] a_cells = ((FactorTable.Doubles) a.table).cells;
+            forEachRange(cells.length, (from, to) -> sumOutRange(a_cells, cells, eliminated_stride, eliminated_cardinality, from, to));
+        } else {
+            forEachRange(this.table.length(), (from, to) -> sumOutRange(a.table, eliminated_stride, eliminated_cardinality, from, to));
         }
 
-        // Sorting variables by network order for consistent order:
-        Collections.sort(this.factor_variables, new Comparator<BayesianNetworkElement>() {
-            public int compare(BayesianNetworkElement left, BayesianNetworkElement right) {
-                return Integer.compare(network.indexOf(left), network.indexOf(right));
-            }
-        });
+        // A sum of non-negative terms keeps their relative error (the double precision summation adds next to nothing):
+        this.error_bound = (1 + a.error_bound) * (1 + storage.rounding()) - 1;
+
+        this.additions = this.table.length() * (eliminated_cardinality - 1);
+        counter.additions(this.additions);
+        if (counter.profile != null)
+            counter.profile.sumOut(a.table.length(), this.table.length(), System.nanoTime() - start);
+    }
+
+    /*
+     * Returns the position of the variable with the given id in this factor, or -1 if the factor does not use it.
+     */
+    public int indexOf(int variable) {
+        for (int i = 0; i < this.factor_variables.size(); i++) {
+            if (this.factor_variables.get(i).id == variable)
+                return i;
+        }
+        return -1;
+    }
+
+    public boolean contains(int variable) {
+        return indexOf(variable) != -1;
+    }
+
+    /*
+     * Frees the factor's table (if it is off-heap) once it is no longer needed. Cached factors are left alone.
+     */
+    public void release() {
+        if (!this.cached)
+            this.table.release();
+    }
+
+    /*
+     * Number of cells in the factor's table.
+     */
+    public int size() {
+        return this.table.length();
+    }
 
-        // Get all possible outcomes:
-        List<String> outcomes = new ArrayList<>();
-        BayesianNetworkTools.generatePermutations(network, outcomes, 0, "");
+    public double value(int index) {
+        return this.table.get(index);
+    }
+
+    /*
+     * Returns factor's value for specific outcome combination (outcome ids in the factor's variable order).
+     */
+    public double getValue(int[] outcomes) {
+        int offset = 0;
+        for (int i = 0; i < outcomes.length; i++) {
+            offset += this.strides[i] * outcomes[i];
+        }
+
+        return this.table.get(offset);
+    }
+
+    /*
+     * Computes cardinalities and row-major strides of the factor's variables and allocates its table.
+     */
+    private void allocate(FactorStorage storage) {
+        int size = this.factor_variables.size();
+        this.cardinalities = new int[size];
+        this.strides = new int[size];
+
+        int length = 1;
+        for (int i = size - 1; i >= 0; i--) {
+            this.cardinalities[i] = this.factor_variables.get(i).outcomes.size();
+            this.strides[i] = length;
+            length *= this.cardinalities[i];
+        }
+
+        this.table = storage.allocate(length);
+    }
+
+    /*
+     * Computes cells [from, to) of a join of tables laid out with the given (aligned) strides.
+     */
+    private void joinRange(FactorTable a_table, FactorTable b_table, int[] a_strides, int[] b_strides, int from, int to) {
+        FactorTable table = this.table;
+        int[] cardinalities = this.cardinalities;
+        boolean log_space = this.log_space;
 
-        List<List<String>> variable_outcomes = new ArrayList<>();
-        for (String outcome: outcomes) {
-            List<String> variable_outcome = new ArrayList<>();
-            for (BayesianNetworkElement variable: this.factor_variables) {
-                variable_outcome.add(outcome.split(",")[network.indexOf(variable)]);
+        // Decode the first cell into its assignment and the operands' offsets (all 0 for the first range):
+        int[] assignment = new int[cardinalities.length];
+        int a_offset = 0;
+        int b_offset = 0;
+        if (from > 0) {
+            for (int j = 0; j < assignment.length; j++) {
+                assignment[j] = (from / this.strides[j]) % cardinalities[j];
+                a_offset += a_strides[j] * assignment[j];
+                b_offset += b_strides[j] * assignment[j];
             }
-            variable_outcomes.add(variable_outcome);
         }
 
-        // removes duplicates:
-        variable_outcomes = variable_outcomes.stream().distinct().collect(Collectors.toList());
+        for (int i = from; i < to; i++) {
+            table.set(i, log_space
+                    ? a_table.get(a_offset) + b_table.get(b_offset)
+                    : a_table.get(a_offset) * b_table.get(b_offset));
 
-        // Get appropriate values for the factor's table based on the outcomes:
-        this.values = new ArrayList<>();
-        for (List<String> outcome: variable_outcomes) {
-            List<String> outcome_a = new ArrayList<>();
-            List<String> outcome_b = new ArrayList<>();
-            int i = 0;
-            for (String value: outcome) {
-                if (a.factor_variables.contains(this.factor_variables.get(i))) {
-                    outcome_a.add(value);
-                }
-                if (b.factor_variables.contains(this.factor_variables.get(i))) {
-                    outcome_b.add(value);
+            // Move both operands to the next cell, undoing the strides of the digits that wrapped around:
+            for (int j = assignment.length - 1; j >= 0; j--) {
+                if (++assignment[j] < cardinalities[j]) {
+                    a_offset += a_strides[j];
+                    b_offset += b_strides[j];
+                    break;
                 }
-                i++;
+                assignment[j] = 0;
+                a_offset -= a_strides[j] * (cardinalities[j] - 1);
+                b_offset -= b_strides[j] * (cardinalities[j] - 1);
             }
+        }
+    }
 
-            double a_val = a.getValue(outcome_a);
-            double b_val = b.getValue(outcome_b);
-            this.values.add(a_val*b_val);
-            counter.multiplication();
+    /*
+     * Same as above over heap double tables, writing into 'cells' (this factor's table).
+     */
+    private void joinRange(double[] a_cells, double[] b_cells, double[] cells, int[] a_strides, int[] b_strides, int from, int to) {
+        int[] cardinalities = this.cardinalities;
+        boolean log_space = this.log_space;
+
+        int[] assignment = new int[cardinalities.length];
+        int a_offset = 0;
+        int b_offset = 0;
+        if (from > 0) {
+            for (int j = 0; j < assignment.length; j++) {
+                assignment[j] = (from / this.strides[j]) % cardinalities[j];
+                a_offset += a_strides[j] * assignment[j];
+                b_offset += b_strides[j] * assignment[j];
+            }
+        }
+
+        for (int i = from; i < to; i++) {
+            cells[i] = log_space ? a_cells[a_offset] + b_cells[b_offset] : a_cells[a_offset] * b_cells[b_offset];
+
+            for (int j = assignment.length - 1; j >= 0; j--) {
+                if (++assignment[j] < cardinalities[j]) {
+                    a_offset += a_strides[j];
+                    b_offset += b_strides[j];
+                    break;
+                }
+                assignment[j] = 0;
+                a_offset -= a_strides[j] * (cardinalities[j] - 1);
+                b_offset -= b_strides[j] * (cardinalities[j] - 1);
+            }
         }
     }
 
     /*
-     * Creates a factor from another factor but removes a variable.
+     * Computes cells [from, to) of a sum-out of the variable with the given stride and cardinality from 'a_table'.
      */
-    public Factor(List<BayesianNetworkElement> network, Factor a, String variable_to_eliminate, MathematicalOperationsCounter counter) {
-        this.factor_variables = new ArrayList<>(a.factor_variables);
+    private void sumOutRange(FactorTable a_table, int eliminated_stride, int eliminated_cardinality, int from, int to) {
+        // Every output cell splits into an outer block (variables before the eliminated one) and an inner offset:
+        int inner_size = eliminated_stride;
+        int outer_stride = eliminated_stride * eliminated_cardinality;
 
-        BayesianNetworkElement eliminated_variable = null;
-        for (BayesianNetworkElement element: this.factor_variables) {
-            if (Objects.equals(element.name, variable_to_eliminate)) {
-                eliminated_variable = element;
-                break;
+        int inner = from % inner_size;
+        int block = (from / inner_size) * outer_stride;
+        for (int i = from; i < to; i++) {
+            int offset = block + inner;
+            this.table.set(i, this.log_space
+                    ? logSumExp(a_table, offset, eliminated_stride, eliminated_cardinality)
+                    : sum(a_table, offset, eliminated_stride, eliminated_cardinality));
+            if (++inner == inner_size) {
+                inner = 0;
+                block += outer_stride;
             }
         }
-        this.factor_variables.remove(eliminated_variable);
-        int eliminated_variable_index = a.factor_variables.indexOf(eliminated_variable);
+    }
 
-        // Get all possible outcomes:
-        List<String> outcomes = new ArrayList<>();
-        BayesianNetworkTools.generatePermutations(network, outcomes, 0, "");
+    /*
+     * Same as above over heap double tables, writing into 'cells' (this factor's table).
+     */
+    private void sumOutRange(double[] a_cells, double[] cells, int eliminated_stride, int eliminated_cardinality, int from, int to) {
+        int inner_size = eliminated_stride;
+        int outer_stride = eliminated_stride * eliminated_cardinality;
+        boolean log_space = this.log_space;
 
-        List<List<String>> variable_outcomes = new ArrayList<>();
-        for (String outcome: outcomes) {
-            List<String> variable_outcome = new ArrayList<>();
-            for (BayesianNetworkElement variable: this.factor_variables) {
-                variable_outcome.add(outcome.split(",")[network.indexOf(variable)]);
+        int inner = from % inner_size;
+        int block = (from / inner_size) * outer_stride;
+        for (int i = from; i < to; i++) {
+            int offset = block + inner;
+            cells[i] = log_space
+                    ? logSumExp(a_cells, offset, eliminated_stride, eliminated_cardinality)
+                    : sum(a_cells, offset, eliminated_stride, eliminated_cardinality);
+            if (++inner == inner_size) {
+                inner = 0;
+                block += outer_stride;
             }
-            variable_outcomes.add(variable_outcome);
         }
+    }
 
-        // removes duplicates:
-        variable_outcomes = variable_outcomes.stream().distinct().collect(Collectors.toList());
+    private interface RangeKernel {
+        void run(int from, int to);
+    }
 
-        // Get appropriate values for the factor's table based on the outcomes:
-        this.values = new ArrayList<>();
-        for (List<String> outcome: variable_outcomes) {
-            double cpt_value = 0;
+    /*
+     * Runs the kernel over [0, length), in parallel when the table is large enough.
+     */
+    private static void forEachRange(int length, RangeKernel kernel) {
+        int threshold = parallel_threshold;
+        if (threshold <= 0 || length < threshold || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            kernel.run(0, length);
+            return;
+        }
+
+        // A few ranges per worker, so uneven progress still balances out:
+        int grain = Math.max(MIN_RANGE, length / (4 * ForkJoinPool.getCommonPoolParallelism()));
+        ForkJoinPool.commonPool().invoke(new RangeTask(kernel, 0, length, grain));
+    }
 
-            int i = 0;
-            for (String eliminated_variable_outcome: eliminated_variable.outcomes) {
-                outcome.add(eliminated_variable_index, eliminated_variable_outcome);
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-                cpt_value += a.getValue(outcome);
-                if (i != 0)
-                    counter.addition();
-                i++;
+        private final RangeKernel kernel;
+        private final int from;
+        private final int to;
+        private final int grain;
 
-                outcome.remove(eliminated_variable_index);
+        RangeTask(RangeKernel kernel, int from, int to, int grain) {
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        protected void compute() {
+            if (this.to - this.from <= this.grain) {
+                this.kernel.run(this.from, this.to);
+                return;
             }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new RangeTask(this.kernel, this.from, middle, this.grain),
+                    new RangeTask(this.kernel, middle, this.to, this.grain));
+        }
+    }
 
-            this.values.add(cpt_value);
+    private static double sum(FactorTable table, int offset, int stride, int count) {
+        double sum = table.get(offset);
+        for (int k = 1; k < count; k++) {
+            offset += stride;
+            sum += table.get(offset);
         }
+        return sum;
     }
 
-    public List<String> getVariables() {
-        List<String> variables = new ArrayList<>();
-        for (BayesianNetworkElement element: this.factor_variables) {
-            variables.add(element.name);
+    private static double sum(double[] cells, int offset, int stride, int count) {
+        double sum = cells[offset];
+        for (int k = 1; k < count; k++) {
+            offset += stride;
+            sum += cells[offset];
         }
-        return variables;
+        return sum;
     }
 
     /*
-     * Returns factor's value for specific outcome combination.
+     * log(sum(exp(cells))) over 'count' entries, shifted by their maximum so the exponentials cannot overflow or
+     * all underflow (entries of -Infinity stand for probability 0).
      */
-    public double getValue(List<String> outcomes) {
-        int offset = 0;
-        int modifier = this.values.size();
+    static double logSumExp(FactorTable table, int offset, int stride, int count) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0, o = offset; k < count; k++, o += stride) {
+            max = Math.max(max, table.get(o));
+        }
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
+
+        double sum = 0;
+        for (int k = 0, o = offset; k < count; k++, o += stride) {
+            sum += Math.exp(table.get(o) - max);
+        }
+        return max + Math.log(sum);
+    }
 
-        int i = 0;
-        for (BayesianNetworkElement parent: this.factor_variables) {
-            modifier /= parent.outcomes.size();
-            offset += modifier * parent.outcomes.indexOf(outcomes.get(i));
-            i++;
+    private static double logSumExp(double[] cells, int offset, int stride, int count) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0, o = offset; k < count; k++, o += stride) {
+            max = Math.max(max, cells[o]);
         }
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
 
-        return this.values.get(offset);
+        double sum = 0;
+        for (int k = 0, o = offset; k < count; k++, o += stride) {
+            sum += Math.exp(cells[o] - max);
+        }
+        return max + Math.log(sum);
+    }
+
+    /*
+     * Returns the strides of 'operand' laid out over this factor's variables.
+     */
+    private int[] alignedStrides(Factor operand) {
+        int[] aligned = new int[this.factor_variables.size()];
+        for (int i = 0; i < aligned.length; i++) {
+            int index = operand.indexOf(this.factor_variables.get(i).id);
+            if (index != -1)
+                aligned[i] = operand.strides[index];
+        }
+        return aligned;
+    }
+
+    /*
+     * Advances a mixed-radix assignment by one and returns the updated offset for the given strides.
+     */
+    private static int increment(int[] assignment, int[] cardinalities, int[] strides, int offset) {
+        for (int j = assignment.length - 1; j >= 0; j--) {
+            if (++assignment[j] < cardinalities[j])
+                return offset + strides[j];
+            assignment[j] = 0;
+            offset -= strides[j] * (cardinalities[j] - 1);
+        }
+        return offset;
+    }
+
+    private static void sortByNetworkOrder(List<BayesianNetworkElement> variables) {
+        Collections.sort(variables, new Comparator<BayesianNetworkElement>() {
+            public int compare(BayesianNetworkElement left, BayesianNetworkElement right) {
+                return Integer.compare(left.id, right.id);
+            }
+        });
     }
 }
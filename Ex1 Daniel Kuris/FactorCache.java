@@ -0,0 +1,133 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A bounded LRU cache of factors, weighted by table length (cells).
+ * Keys describe exactly how a factor was built: a reduced CPT is keyed by its element and the evidence on the
+ * element's family, a join by the keys of its operands, and a sum-out by the key of its operand and the eliminated
+ * variable. A hit therefore returns the very table the computation would have produced, and the counter is
+ * credited with the operations that were originally spent on it, so reported counts do not depend on the cache.
+ * Cached factors are shared between queries, so they are never released explicitly: an evicted off-heap table is
+ * freed by the garbage collector.
+ */
+public class FactorCache {
+    // Longer keys are replaced by a digest so nested keys do not grow with the depth of the computation:
+    private static final int MAX_KEY_LENGTH = 96;
+
+    private final long capacity;
+    private long size = 0;
+    private final LinkedHashMap<String, Factor> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+
+    /*
+     * Creates a cache holding at most 'capacity' table cells in total.
+     */
+    public FactorCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /*
+     * Returns the cached factor for 'key' (crediting its operations to the counter), or null on a miss.
+     */
+    public Factor get(String key, MathematicalOperationsCounter counter) {
+        Factor factor;
+        synchronized (this) {
+            factor = this.entries.get(key);
+        }
+
+        if (factor == null) {
+            this.misses.incrementAndGet();
+            counter.cache_misses++;
+            return null;
+        }
+
+        this.hits.incrementAndGet();
+        counter.cache_hits++;
+        counter.additions(factor.additions);
+        counter.multiplications(factor.multiplications);
+        return factor;
+    }
+
+    /*
+     * Caches a factor under its key, evicting the least recently used factors to stay within the capacity.
+     */
+    public synchronized void put(Factor factor) {
+        long cells = factor.size();
+        if (factor.key == null || cells > this.capacity)
+            return;
+
+        factor.cached = true;
+        Factor previous = this.entries.put(factor.key, factor);
+        if (previous != null)
+            this.size -= previous.size();
+        this.size += cells;
+
+        Iterator<Map.Entry<String, Factor>> eldest = this.entries.entrySet().iterator();
+        while (this.size > this.capacity && eldest.hasNext()) {
+            this.size -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+    }
+
+    public synchronized long cells() {
+        return this.size;
+    }
+
+    public String report() {
+        return String.format("factor cache: %d hits, %d misses, %d cells cached", this.hits.get(), this.misses.get(), cells());
+    }
+
+    /*
+     * Key of the CPT of 'element' reduced by the evidence on its family ('l' instead of 'c' for log-space tables and
+     * 'f' for single precision ones, which the keys of joins and sum-outs then inherit).
+     */
+    public static String cptKey(CompiledNetwork network, BayesianNetworkElement element, int[] evidence, boolean log_space, FactorStorage storage) {
+        StringBuilder key = new StringBuilder(log_space ? "l" : storage.compact ? "f" : "c").append(element.id);
+        for (int parent: network.parents[element.id]) {
+            if (evidence[parent] != -1)
+                key.append(',').append(parent).append('=').append(evidence[parent]);
+        }
+        if (evidence[element.id] != -1)
+            key.append(',').append(element.id).append('=').append(evidence[element.id]);
+        return key.toString();
+    }
+
+    /*
+     * Key of the join of two keyed factors (multiplication is commutative, so the operands are ordered).
+     */
+    public static String joinKey(Factor a, Factor b) {
+        if (a.key.compareTo(b.key) > 0)
+            return joinKey(b, a);
+        return compact("(" + a.key + "*" + b.key + ")");
+    }
+
+    /*
+     * Key of a keyed factor with a variable summed out.
+     */
+    public static String sumOutKey(Factor a, int variable) {
+        return compact("(" + a.key + "-" + variable + ")");
+    }
+
+    private static String compact(String key) {
+        if (key.length() <= MAX_KEY_LENGTH)
+            return key;
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder("#");
+            for (byte b: digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
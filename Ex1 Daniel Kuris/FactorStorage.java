@@ -0,0 +1,70 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * How the factors of a query store their tables. The default keeps double precision cells on the heap; the compact
+ * storage ('storage=float') keeps single precision cells, which halves the memory of large intermediate factors.
+ * Compact factors carry a bound on their relative error (see Factor.error_bound), so the error of an answer can be
+ * reported next to it.
+ * Tables of at least 'off_heap_threshold' cells are allocated off-heap. A storage belongs to one query and keeps
+ * track of the off-heap bytes its tables hold, so the peak of every query can be reported.
+ */
+public class FactorStorage {
+    public static final String DOUBLE = "double";
+    public static final String FLOAT = "float";
+
+    // Smallest table moved off-heap by the storages of queries ('--off-heap-threshold <cells>' in Ex1, 0 disables it):
+    public static volatile long default_off_heap_threshold = 1L << 20;
+
+    // Heap-only storage for code that does not track a query (junction tree, benchmarks):
+    public static final FactorStorage HEAP = new FactorStorage(false, Long.MAX_VALUE);
+
+    public final boolean compact;
+    public final long off_heap_threshold;
+
+    private final AtomicLong off_heap_bytes = new AtomicLong();
+    private final AtomicLong peak_off_heap_bytes = new AtomicLong();
+
+    public FactorStorage(boolean compact, long off_heap_threshold) {
+        this.compact = compact;
+        this.off_heap_threshold = off_heap_threshold <= 0 ? Long.MAX_VALUE : off_heap_threshold;
+    }
+
+    /*
+     * Returns a new storage for one query, for a 'storage=...' option value.
+     */
+    public static FactorStorage of(String storage) {
+        return new FactorStorage(storage.equals(FLOAT), default_off_heap_threshold);
+    }
+
+    FactorTable allocate(int length) {
+        if (length >= this.off_heap_threshold) {
+            FactorTable table = new FactorTable.OffHeap(length, this.compact, this);
+            long bytes = this.off_heap_bytes.addAndGet(table.bytes());
+            this.peak_off_heap_bytes.accumulateAndGet(bytes, Math::max);
+            return table;
+        }
+        return this.compact ? new FactorTable.Floats(length) : new FactorTable.Doubles(length);
+    }
+
+    void released(long bytes) {
+        this.off_heap_bytes.addAndGet(-bytes);
+    }
+
+    /*
+     * Off-heap bytes currently held by tables of this storage, and the most they ever held at once.
+     */
+    public long offHeapBytes() {
+        return this.off_heap_bytes.get();
+    }
+
+    public long peakOffHeapBytes() {
+        return this.peak_off_heap_bytes.get();
+    }
+
+    /*
+     * Relative error added by storing a computed value into a table of this storage.
+     */
+    double rounding() {
+        return this.compact ? FactorTable.FLOAT_ROUNDING : 0;
+    }
+}
@@ -0,0 +1,192 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/*
+ * The cells of a factor, in row-major order. Tables are created by a FactorStorage, which decides how the cells
+ * are held: as doubles or floats (half the memory), on the heap or, for large tables, off-heap.
+ */
+public abstract class FactorTable {
+    // Unit roundoff of float: rounding to nearest changes a value by a relative error of at most 2^-24
+    public static final double FLOAT_ROUNDING = 0x1p-24;
+
+    public abstract int length();
+
+    public abstract double get(int index);
+
+    public abstract void set(int index, double value);
+
+    public abstract void fill(double value);
+
+    // Bytes held by the cells:
+    public abstract long bytes();
+
+    /*
+     * Frees the cells now instead of leaving them to the garbage collector. The table must not be used afterwards.
+     */
+    public void release() {
+    }
+
+    /*
+     * Double precision cells on the heap (the default).
+     */
+    static final class Doubles extends FactorTable {
+        // Read and written directly by the join and sum-out kernels of Factor:
+        final double[] cells;
+
+        Doubles(int length) {
+            this.cells = new double[length];
+        }
+
+        public int length() {
+            return this.cells.length;
+        }
+
+        public double get(int index) {
+            return this.cells[index];
+        }
+
+        public void set(int index, double value) {
+            this.cells[index] = value;
+        }
+
+        public void fill(double value) {
+            Arrays.fill(this.cells, value);
+        }
+
+        public long bytes() {
+            return 8L * this.cells.length;
+        }
+    }
+
+    /*
+     * Single precision cells on the heap. Every stored value is rounded to the nearest float, a relative error of at
+     * most FLOAT_ROUNDING.
+     */
+    static final class Floats extends FactorTable {
+        private final float[] cells;
+
+        Floats(int length) {
+            this.cells = new float[length];
+        }
+
+        public int length() {
+            return this.cells.length;
+        }
+
+        public double get(int index) {
+            return this.cells[index];
+        }
+
+        public void set(int index, double value) {
+            this.cells[index] = (float) value;
+        }
+
+        public void fill(double value) {
+            Arrays.fill(this.cells, (float) value);
+        }
+
+        public long bytes() {
+            return 4L * this.cells.length;
+        }
+    }
+
+    /*
+     * Cells in direct (off-heap) buffers, so huge tables do not add to the garbage collector's work. A buffer holds
+     * at most 2^26 cells, larger tables are split into chunks. release() frees the memory right away.
+     */
+    static final class OffHeap extends FactorTable {
+        private static final int CHUNK_SHIFT = 26;
+        private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+        private final ByteBuffer[] chunks;
+        private final int length;
+        private final boolean compact;
+        private final FactorStorage owner;
+
+        OffHeap(int length, boolean compact, FactorStorage owner) {
+            this.length = length;
+            this.compact = compact;
+            this.owner = owner;
+
+            int cell_bytes = compact ? 4 : 8;
+            this.chunks = new ByteBuffer[(int) (((long) length + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int c = 0; c < this.chunks.length; c++) {
+                int cells = Math.min(CHUNK_MASK + 1, length - (c << CHUNK_SHIFT));
+                this.chunks[c] = ByteBuffer.allocateDirect(cells * cell_bytes).order(ByteOrder.nativeOrder());
+            }
+        }
+
+        public int length() {
+            return this.length;
+        }
+
+        public double get(int index) {
+            ByteBuffer chunk = this.chunks[index >>> CHUNK_SHIFT];
+            int cell = index & CHUNK_MASK;
+            return this.compact ? chunk.getFloat(cell << 2) : chunk.getDouble(cell << 3);
+        }
+
+        public void set(int index, double value) {
+            ByteBuffer chunk = this.chunks[index >>> CHUNK_SHIFT];
+            int cell = index & CHUNK_MASK;
+            if (this.compact) {
+                chunk.putFloat(cell << 2, (float) value);
+            } else {
+                chunk.putDouble(cell << 3, value);
+            }
+        }
+
+        public void fill(double value) {
+            for (int i = 0; i < this.length; i++) {
+                set(i, value);
+            }
+        }
+
+        public long bytes() {
+            return (long) this.length * (this.compact ? 4 : 8);
+        }
+
+        public synchronized void release() {
+            if (this.chunks.length == 0 || this.chunks[0] == null)
+                return;
+
+            for (int c = 0; c < this.chunks.length; c++) {
+                free(this.chunks[c]);
+                this.chunks[c] = null;
+            }
+            this.owner.released(bytes());
+        }
+    }
+
+    // sun.misc.Unsafe.invokeCleaner frees a direct buffer immediately; without it the memory waits for the collector.
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invoke_cleaner = null;
+        try {
+            Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+            Field field = unsafe_class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invoke_cleaner = unsafe_class.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invoke_cleaner;
+    }
+
+    private static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null)
+            return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the garbage collector
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * A histogram of non-negative values in power-of-two buckets: bucket 0 counts zeros and bucket i counts the values
+ * in [2^(i-1), 2^i). Recording is a few arithmetic operations, so it is cheap enough for every join of a query.
+ * Not synchronized: a histogram is filled by one thread, or under the lock of its owner.
+ */
+public class Histogram {
+    public static final int BUCKETS = 65;
+
+    public final long[] counts = new long[BUCKETS];
+    public long count;
+    public long sum;
+    public long max;
+
+    public void record(long value) {
+        this.counts[bucket(value)]++;
+        this.count++;
+        this.sum += value;
+        this.max = Math.max(this.max, value);
+    }
+
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    /*
+     * Upper bound of the bucket holding the given fraction of the values (e.g. 0.99), within a factor of two.
+     */
+    public long percentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * this.count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+            if (seen >= rank && seen > 0)
+                return Math.min(upperBound(i), this.max);
+        }
+        return 0;
+    }
+
+    static int bucket(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    // Largest value counted by a bucket:
+    static long upperBound(int bucket) {
+        return bucket == 0 ? 0 : bucket == 64 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
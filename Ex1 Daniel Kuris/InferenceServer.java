@@ -0,0 +1,121 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/*
+ * Serves queries over a local TCP socket ('Ex1 serve'), so networks are parsed once and their caches stay warm.
+ * The protocol is line based, in the syntax of input.txt: every line a client sends is a query, and the server
+ * answers every line with one line, in the order of the requests. A line may start with '@<network> ' to pick one
+ * of the loaded networks (by file name); otherwise the first network answers. Unknown networks and queries that fail
+ * are answered with "error".
+ * Clients may pipeline: requests are read and dispatched while earlier ones are still running (up to 'window' per
+ * connection). Every connection, and every query, runs on its own virtual thread (a plain thread before Java 21).
+ */
+public class InferenceServer implements AutoCloseable {
+    public static final int DEFAULT_PORT = 7070;
+    public static final int DEFAULT_WINDOW = 256;
+
+    private final Map<String, CompiledNetwork> networks;
+    private final CompiledNetwork default_network;
+    private final BiFunction<CompiledNetwork, String, Supplier<String>> answer;
+    private final ServerSocket server_socket;
+    private final ExecutorService threads;
+    public int window = DEFAULT_WINDOW;
+
+    /*
+     * Binds the loopback interface on 'port' (0 picks a free port). 'answer' reserves the answer of a query.
+     */
+    public InferenceServer(Map<String, CompiledNetwork> networks, int port, BiFunction<CompiledNetwork, String, Supplier<String>> answer) throws IOException {
+        this.networks = networks;
+        this.default_network = networks.values().iterator().next();
+        this.answer = answer;
+        this.server_socket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        this.threads = threadPerTaskExecutor();
+    }
+
+    public int port() {
+        return this.server_socket.getLocalPort();
+    }
+
+    /*
+     * Accepts connections until the server is closed.
+     */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                Socket socket = this.server_socket.accept();
+                this.threads.execute(() -> handle(socket));
+            }
+        } catch (SocketException e) {
+            if (!this.server_socket.isClosed())
+                throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        this.server_socket.close();
+        this.threads.shutdownNow();
+    }
+
+    private void handle(Socket socket) {
+        try (Socket connection = socket;
+             BufferedReader input = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             Writer output = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+            connection.setTcpNoDelay(true);
+            new QueryPipeline(this.threads, this.window, this::reserve, this.threads, true).run(input, output);
+        } catch (IOException | ExecutionException e) {
+            // The client went away (or the connection failed); nothing is left to answer
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * The answer of one request line. Failures become "error" so one bad query does not end the connection.
+     */
+    private Supplier<String> reserve(String line) {
+        CompiledNetwork network = this.default_network;
+        String query = line;
+        if (line.startsWith("@")) {
+            int separator = line.indexOf(' ');
+            network = this.networks.get(separator == -1 ? line.substring(1) : line.substring(1, separator));
+            query = separator == -1 ? "" : line.substring(separator + 1).trim();
+        }
+        if (network == null || query.isEmpty())
+            return () -> "error";
+
+        Supplier<String> result = this.answer.apply(network, query);
+        return () -> {
+            try {
+                return result.get();
+            } catch (RuntimeException e) {
+                return "error";
+            }
+        };
+    }
+
+    /*
+     * One virtual thread per task (Java 21); older runtimes get a new platform thread per task instead.
+     */
+    static ExecutorService threadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
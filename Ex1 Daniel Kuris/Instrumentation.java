@@ -0,0 +1,22 @@
+/*
+ * Where query answering reports what it spends (see QueryProfile). Ex1 asks for a profile before every query, the
+ * engines fill it through the query's counter, and the filled profile is handed back once the answer is ready.
+ * NONE, the default, hands out no profile, so nothing is recorded and every recording site costs a null check;
+ * subclasses decide what to keep (ProfileCollector aggregates histograms and prints per-query reports).
+ */
+public class Instrumentation {
+    public static final Instrumentation NONE = new Instrumentation();
+
+    /*
+     * Returns the profile to fill for a query, or null to record nothing.
+     */
+    public QueryProfile begin(String query) {
+        return null;
+    }
+
+    /*
+     * Receives a profile returned by begin() once its query is answered. Queries may end on several threads at once.
+     */
+    public void end(QueryProfile profile) {
+    }
+}
@@ -0,0 +1,371 @@
+import java.util.*;
+
+/*
+ * Junction tree (clique tree) inference over a compiled network.
+ * The moral graph is triangulated with the min-fill order, its maximal cliques are connected by a maximum-weight
+ * spanning tree over separator sizes, and every CPT is assigned to one clique containing its family.
+ * For each evidence set the tree is calibrated once with Shafer-Shenoy message passing (collect to the root, then
+ * distribute from it); every single-variable marginal P(X=x|e) is then read from a calibrated clique.
+ * A cached calibration keeps the operations spent on it and credits them to every query it answers (as FactorCache
+ * does for factors), so reported counts do not depend on query order or on which thread calibrated first.
+ */
+public class JunctionTree {
+    private static final int CALIBRATION_CACHE_SIZE = 64;
+
+    private final CompiledNetwork network;
+    // Clique variables (sorted by network order), tree adjacency and the CPTs multiplied into each clique:
+    final List<List<BayesianNetworkElement>> cliques;
+    final int[][] neighbors;
+    final List<List<BayesianNetworkElement>> assigned;
+    // The smallest clique containing each variable:
+    final int[] home;
+    // Cliques in pre-order from the root (clique 0) and the parent of every clique in that traversal:
+    private final int[] traversal;
+    private final int[] tree_parent;
+
+    // Recently calibrated evidence sets, most recently used last:
+    private final Map<String, Calibration> calibrations = new LinkedHashMap<String, Calibration>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Calibration> eldest) {
+            return size() > CALIBRATION_CACHE_SIZE;
+        }
+    };
+
+    public JunctionTree(CompiledNetwork network) {
+        this.network = network;
+
+        // Triangulate the moral graph of all CPTs with the min-fill order:
+        int[] no_evidence = new int[network.size()];
+        Arrays.fill(no_evidence, -1);
+        List<Factor> cpts = new ArrayList<>(network.size());
+        boolean[] all = new boolean[network.size()];
+        for (BayesianNetworkElement element: network.elements) {
+            cpts.add(new Factor(network, element, no_evidence));
+            all[element.id] = true;
+        }
+        EliminationOrderPlanner.Plan plan = EliminationOrderPlanner.plan(network, cpts, all, EliminationOrderPlanner.Heuristic.MIN_FILL);
+
+        // Keep the maximal elimination cliques (a clique can only be contained in one created before it):
+        List<int[]> maximal = new ArrayList<>();
+        for (int[] clique: EliminationOrderPlanner.eliminationCliques(network, cpts, plan.order)) {
+            boolean contained = false;
+            for (int[] other: maximal) {
+                if (isSubset(clique, other)) {
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained)
+                maximal.add(clique);
+        }
+        // A network without variables still gets one (empty) clique:
+        if (maximal.isEmpty())
+            maximal.add(new int[0]);
+
+        this.cliques = new ArrayList<>(maximal.size());
+        for (int[] clique: maximal) {
+            List<BayesianNetworkElement> variables = new ArrayList<>(clique.length);
+            for (int variable: clique) {
+                variables.add(network.element(variable));
+            }
+            this.cliques.add(variables);
+        }
+
+        // Maximum spanning tree over separator sizes (Prim). Empty separators join disconnected components:
+        int size = maximal.size();
+        int[] best_weight = new int[size];
+        int[] best_link = new int[size];
+        boolean[] in_tree = new boolean[size];
+        Arrays.fill(best_weight, -1);
+        Arrays.fill(best_link, -1);
+        best_weight[0] = 0;
+
+        List<List<Integer>> adjacency = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            adjacency.add(new ArrayList<>());
+        }
+        for (int step = 0; step < size; step++) {
+            int next = -1;
+            for (int i = 0; i < size; i++) {
+                if (!in_tree[i] && (next == -1 || best_weight[i] > best_weight[next]))
+                    next = i;
+            }
+            in_tree[next] = true;
+            if (best_link[next] != -1) {
+                adjacency.get(next).add(best_link[next]);
+                adjacency.get(best_link[next]).add(next);
+            }
+
+            for (int i = 0; i < size; i++) {
+                if (!in_tree[i]) {
+                    int weight = intersectionSize(maximal.get(next), maximal.get(i));
+                    if (weight > best_weight[i]) {
+                        best_weight[i] = weight;
+                        best_link[i] = next;
+                    }
+                }
+            }
+        }
+        this.neighbors = new int[size][];
+        for (int i = 0; i < size; i++) {
+            this.neighbors[i] = adjacency.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        // Pre-order traversal from the root:
+        this.traversal = new int[size];
+        this.tree_parent = new int[size];
+        Arrays.fill(this.tree_parent, -1);
+        boolean[] seen = new boolean[size];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(0);
+        seen[0] = true;
+        int position = 0;
+        while (!stack.isEmpty()) {
+            int clique = stack.pop();
+            this.traversal[position++] = clique;
+            for (int neighbor: this.neighbors[clique]) {
+                if (!seen[neighbor]) {
+                    seen[neighbor] = true;
+                    this.tree_parent[neighbor] = clique;
+                    stack.push(neighbor);
+                }
+            }
+        }
+
+        // Assign every CPT to the smallest clique containing its family, and every variable to its smallest clique:
+        this.assigned = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            this.assigned.add(new ArrayList<>());
+        }
+        this.home = new int[network.size()];
+        for (BayesianNetworkElement element: network.elements) {
+            int[] family = Arrays.copyOf(network.parents[element.id], network.parents[element.id].length + 1);
+            family[family.length - 1] = element.id;
+            Arrays.sort(family);
+            this.assigned.get(smallestCliqueContaining(maximal, family)).add(element);
+            this.home[element.id] = smallestCliqueContaining(maximal, new int[]{element.id});
+        }
+    }
+
+    /*
+     * Calculates P(request_left | request_right) from the calibrated tree, in the same format as VariableElimination.
+     * The counter receives the operations of the calibration (whether or not this evidence set was calibrated
+     * before) and of the final marginalization.
+     */
+    public double calculateCPT(String request_left, String request_right, MathematicalOperationsCounter counter) {
+        // format: B=T|J=T,M=T
+        return calculateCPT(QueryParser.parseProbability(this.network, request_left, request_right, ""), counter);
+    }
+
+    /*
+     * Same as above for a query compiled by QueryParser (its elimination order and options do not apply here).
+     */
+    public double calculateCPT(CompiledQuery compiled, MathematicalOperationsCounter counter) {
+        int query = compiled.variable;
+        int query_outcome = compiled.outcome;
+        int[] evidence = compiled.evidence;
+
+        // An observed query variable has a certain outcome:
+        if (evidence[query] != -1)
+            return evidence[query] == query_outcome ? 1 : 0;
+
+        Calibration calibration = calibrate(evidence, counter);
+
+        // Marginalize the belief of the query variable's home clique down to the query variable:
+        Factor marginal = calibration.beliefs[this.home[query]];
+        for (BayesianNetworkElement variable: new ArrayList<>(marginal.factor_variables)) {
+            if (variable.id != query)
+                marginal = new Factor(marginal, variable.id, counter);
+        }
+
+        double denominator = 0;
+        for (int outcome = 0; outcome < marginal.size(); outcome++) {
+            denominator += marginal.value(outcome);
+            if (outcome != 0)
+                counter.addition();
+        }
+
+        return marginal.value(query_outcome) / denominator;
+    }
+
+    /*
+     * Returns the calibrated beliefs for an evidence assignment, calibrating the tree if it was not cached. A cached
+     * calibration credits the counter with the operations originally spent on it.
+     */
+    Calibration calibrate(int[] evidence, MathematicalOperationsCounter counter) {
+        String key = evidenceKey(evidence);
+        Calibration cached;
+        synchronized (this.calibrations) {
+            cached = this.calibrations.get(key);
+        }
+        if (cached != null) {
+            counter.additions(cached.additions);
+            counter.multiplications(cached.multiplications);
+            return cached;
+        }
+
+        Calibration calibration = new Calibration(evidence, counter);
+        synchronized (this.calibrations) {
+            this.calibrations.put(key, calibration);
+        }
+        return calibration;
+    }
+
+    /*
+     * The clique potentials, messages and beliefs of one evidence set.
+     */
+    class Calibration {
+        final Factor[] beliefs;
+        // Operations spent calibrating:
+        final int additions;
+        final int multiplications;
+
+        Calibration(int[] evidence, MathematicalOperationsCounter counter) {
+            int size = cliques.size();
+            int additions_before = counter.addition_counter;
+            int multiplications_before = counter.multiplication_counter;
+
+            // Clique potentials: the product of the assigned CPTs, reduced by the evidence.
+            Factor[] potentials = new Factor[size];
+            for (int i = 0; i < size; i++) {
+                List<Factor> factors = new ArrayList<>();
+                for (BayesianNetworkElement element: assigned.get(i)) {
+                    factors.add(new Factor(network, element, evidence));
+                }
+                potentials[i] = product(factors, unobserved(cliques.get(i), evidence), counter);
+            }
+
+            // messages[i][k] is the message from clique i to its k-th neighbor:
+            Factor[][] messages = new Factor[size][];
+            for (int i = 0; i < size; i++) {
+                messages[i] = new Factor[neighbors[i].length];
+            }
+
+            // Collect: children send to their parents, leaves first.
+            for (int position = size - 1; position > 0; position--) {
+                int clique = traversal[position];
+                sendMessage(clique, tree_parent[clique], potentials, messages, evidence, counter);
+            }
+            // Distribute: parents send to their children, root first.
+            for (int position = 0; position < size; position++) {
+                int clique = traversal[position];
+                for (int neighbor: neighbors[clique]) {
+                    if (neighbor != tree_parent[clique])
+                        sendMessage(clique, neighbor, potentials, messages, evidence, counter);
+                }
+            }
+
+            // Beliefs: the potential times every incoming message.
+            this.beliefs = new Factor[size];
+            for (int i = 0; i < size; i++) {
+                List<Factor> factors = new ArrayList<>();
+                factors.add(potentials[i]);
+                for (int neighbor: neighbors[i]) {
+                    factors.add(messages[neighbor][indexOf(neighbors[neighbor], i)]);
+                }
+                this.beliefs[i] = product(factors, unobserved(cliques.get(i), evidence), counter);
+            }
+
+            this.additions = counter.addition_counter - additions_before;
+            this.multiplications = counter.multiplication_counter - multiplications_before;
+        }
+
+        private void sendMessage(int from, int to, Factor[] potentials, Factor[][] messages, int[] evidence, MathematicalOperationsCounter counter) {
+            List<Factor> factors = new ArrayList<>();
+            factors.add(potentials[from]);
+            for (int neighbor: neighbors[from]) {
+                if (neighbor != to)
+                    factors.add(messages[neighbor][indexOf(neighbors[neighbor], from)]);
+            }
+            Factor message = product(factors, unobserved(cliques.get(from), evidence), counter);
+
+            // Sum out everything that is not in the separator:
+            List<BayesianNetworkElement> receiver = cliques.get(to);
+            for (BayesianNetworkElement variable: new ArrayList<>(message.factor_variables)) {
+                if (!receiver.contains(variable))
+                    message = new Factor(message, variable.id, counter);
+            }
+
+            messages[from][indexOf(neighbors[from], to)] = message;
+        }
+    }
+
+    /*
+     * Joins the factors (smallest first) and makes sure the result covers 'scope'.
+     */
+    private static Factor product(List<Factor> factors, List<BayesianNetworkElement> scope, MathematicalOperationsCounter counter) {
+        List<Factor> remaining = new ArrayList<>(factors);
+        while (remaining.size() > 1) {
+            Factor a = VariableElimination.getSmallestFactor(remaining, true);
+            Factor b = VariableElimination.getSmallestFactor(remaining, true);
+            remaining.add(new Factor(a, b, counter));
+        }
+
+        Factor result = remaining.isEmpty() ? new Factor(scope) : remaining.get(0);
+        if (result.factor_variables.size() < scope.size()) {
+            List<BayesianNetworkElement> missing = new ArrayList<>(scope);
+            missing.removeAll(result.factor_variables);
+            result = new Factor(result, new Factor(missing), counter);
+        }
+        return result;
+    }
+
+    private static List<BayesianNetworkElement> unobserved(List<BayesianNetworkElement> variables, int[] evidence) {
+        List<BayesianNetworkElement> result = new ArrayList<>(variables.size());
+        for (BayesianNetworkElement variable: variables) {
+            if (evidence[variable.id] == -1)
+                result.add(variable);
+        }
+        return result;
+    }
+
+    private static String evidenceKey(int[] evidence) {
+        StringBuilder key = new StringBuilder();
+        for (int id = 0; id < evidence.length; id++) {
+            if (evidence[id] != -1)
+                key.append(id).append('=').append(evidence[id]).append(',');
+        }
+        return key.toString();
+    }
+
+    private static int smallestCliqueContaining(List<int[]> cliques, int[] variables) {
+        int best = -1;
+        for (int i = 0; i < cliques.size(); i++) {
+            if (isSubset(variables, cliques.get(i)) && (best == -1 || cliques.get(i).length < cliques.get(best).length))
+                best = i;
+        }
+        return best;
+    }
+
+    /*
+     * Both arrays are sorted.
+     */
+    private static boolean isSubset(int[] small, int[] large) {
+        return intersectionSize(small, large) == small.length;
+    }
+
+    private static int intersectionSize(int[] a, int[] b) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                count++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return count;
+    }
+
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Load generator for the inference server ('Ex1 loadgen'). Every connection replays the queries of an input file
+ * (input.txt format: the first line names the network) with up to 'depth' requests in flight, and the latency of
+ * every request is measured from sending it to reading its answer:
+ *   Ex1 loadgen --port 7070 --input input.txt --connections 4 --requests 10000 --depth 16
+ * Without '--port' an in-process server is started on a free port for the input's network, so a run needs nothing
+ * but localhost.
+ */
+public class LoadGenerator {
+    public String host = "127.0.0.1";
+    public int port;
+    public int connections = 4;
+    public int requests = 1000;     // per connection
+    public int depth = 16;          // requests in flight per connection
+    public List<String> queries;
+
+    private int errors;
+
+    /*
+     * Runs every connection to completion and returns the latency of every request, in nanoseconds.
+     */
+    public long[] run() throws IOException, InterruptedException {
+        List<long[]> latencies = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        IOException[] failure = new IOException[1];
+
+        for (int c = 0; c < this.connections; c++) {
+            long[] connection_latencies = new long[this.requests];
+            latencies.add(connection_latencies);
+            int first = c * this.requests;
+            Thread thread = new Thread(() -> {
+                try {
+                    runConnection(first, connection_latencies);
+                } catch (IOException | InterruptedException e) {
+                    synchronized (failure) {
+                        failure[0] = e instanceof IOException ? (IOException) e : new IOException(e);
+                    }
+                }
+            }, "loadgen-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        synchronized (failure) {
+            if (failure[0] != null)
+                throw failure[0];
+        }
+
+        long[] all = new long[this.connections * this.requests];
+        for (int c = 0; c < latencies.size(); c++) {
+            System.arraycopy(latencies.get(c), 0, all, c * this.requests, this.requests);
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    /*
+     * Sends 'requests' queries (starting at query 'first', round robin) while a second thread reads the answers.
+     */
+    private void runConnection(int first, long[] latencies) throws IOException, InterruptedException {
+        try (Socket socket = new Socket(this.host, this.port)) {
+            socket.setTcpNoDelay(true);
+            Writer output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            // Send times of the requests in flight; the bounded queue keeps at most 'depth' of them unanswered
+            BlockingQueue<Long> in_flight = new ArrayBlockingQueue<>(this.depth);
+            IOException[] read_failure = new IOException[1];
+            Thread reader = new Thread(() -> {
+                try {
+                    int errors = 0;
+                    for (int i = 0; i < latencies.length; i++) {
+                        String answer = input.readLine();
+                        if (answer == null)
+                            throw new IOException("Connection closed after " + i + " answers");
+                        latencies[i] = System.nanoTime() - in_flight.take();
+                        if (answer.equals("error"))
+                            errors++;
+                    }
+                    addErrors(errors);
+                } catch (IOException e) {
+                    read_failure[0] = e;
+                } catch (InterruptedException e) {
+                    read_failure[0] = new IOException(e);
+                }
+            });
+            reader.start();
+
+            for (int i = 0; i < latencies.length; i++) {
+                String query = this.queries.get((first + i) % this.queries.size());
+                while (!in_flight.offer(System.nanoTime(), 100, TimeUnit.MILLISECONDS)) {
+                    if (!reader.isAlive())
+                        break;
+                }
+                if (!reader.isAlive())
+                    break;
+                output.write(query);
+                output.write('\n');
+
+                // Flush once the window is full (or the requests run out), so requests go out in batches:
+                if (in_flight.remainingCapacity() == 0 || i == latencies.length - 1)
+                    output.flush();
+            }
+            output.flush();
+            reader.join();
+            if (read_failure[0] != null)
+                throw read_failure[0];
+        }
+    }
+
+    private synchronized void addErrors(int count) {
+        this.errors += count;
+    }
+
+    /*
+     * Summary of a run: throughput and latency percentiles.
+     */
+    public String report(long[] latencies, long elapsed_nanos) {
+        return String.format("%d requests, %d errors, %.0f req/s, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                latencies.length, this.errors, latencies.length / (elapsed_nanos / 1e9),
+                percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                (latencies.length == 0 ? 0 : latencies[latencies.length - 1]) / 1e6);
+    }
+
+    // Nearest-rank percentile of sorted values:
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /*
+     * Reads the queries of an input file (input.txt format), skipping blank lines. Returns the network file first.
+     */
+    public static List<String> readInput(String file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line: Files.readAllLines(Paths.get(file))) {
+            if (!line.trim().isEmpty())
+                lines.add(line.trim());
+        }
+        return lines;
+    }
+}
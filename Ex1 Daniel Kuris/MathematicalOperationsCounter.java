@@ -5,6 +5,22 @@ public class MathematicalOperationsCounter {
     public int addition_counter;
     public int multiplication_counter;
 
+    // Factor cache lookups made while answering the query:
+    public int cache_hits;
+    public int cache_misses;
+
+    // What the pruning stage removed before variable elimination (null when the query was not pruned):
+    public NetworkPruner.Result pruning;
+
+    // Bound on the relative error of the answer caused by single precision factor storage (0 for double storage):
+    public double error_bound;
+
+    // Most bytes of off-heap factor tables held at once while answering the query:
+    public long peak_off_heap_bytes;
+
+    // Detailed recordings of the query (factors, timings, traversals), or null when instrumentation is off:
+    public QueryProfile profile;
+
     public MathematicalOperationsCounter () {
         addition_counter = 0;
         multiplication_counter = 0;
@@ -17,4 +33,12 @@ public class MathematicalOperationsCounter {
     public void multiplication() {
         multiplication_counter++;
     }
+
+    public void additions(int count) {
+        addition_counter += count;
+    }
+
+    public void multiplications(int count) {
+        multiplication_counter += count;
+    }
 }
@@ -0,0 +1,290 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Generates random Bayesian networks in the XMLBIF format read by the parsers, and matching query files in the
+ * input.txt syntax, for scale and load testing:
+ *   java NetworkGenerator --nodes 1000 --topology layered --max-parents 3 --cardinality 2-3 --seed 7
+ *                         --network net.xml --queries input.txt --query-count 200 --bayes-ball 0.3
+ * Topologies:
+ *   chain     X0 -> X1 -> X2 -> ...
+ *   polytree  a random tree with random edge directions (no undirected cycles)
+ *   grid      every node has its upper and left neighbors as parents
+ *   layered   every node draws its parents from the previous layer ('--layer-width', by default about sqrt(nodes))
+ * Grids and layered networks have a treewidth of about their width, so keep widths small for exact inference.
+ * The same seed always produces the same network and queries.
+ */
+public class NetworkGenerator {
+    public enum Topology {
+        CHAIN, POLYTREE, GRID, LAYERED;
+
+        public static Topology parse(String name) {
+            return Topology.valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    public int nodes = 100;
+    public Topology topology = Topology.LAYERED;
+    public int max_parents = 3;
+    public int min_cardinality = 2;
+    public int max_cardinality = 2;
+    public int layer_width = 0;   // 0 picks about sqrt(nodes)
+    public long seed = 1;
+
+    // The generated structure: parents[i] are the parents of node i, in <GIVEN> order
+    public int[] cardinalities;
+    public int[][] parents;
+
+    public static void main(String[] args) throws IOException {
+        String network_file = option(args, "--network", null);
+        if (network_file == null) {
+            System.err.println("usage: NetworkGenerator --network <file.xml> [--nodes N] [--topology chain|polytree|grid|layered]");
+            System.err.println("       [--max-parents N] [--cardinality K|MIN-MAX] [--layer-width N] [--seed S]");
+            System.err.println("       [--queries <input.txt> [--query-count N] [--bayes-ball FRACTION] [--max-evidence N] [--explicit-order]]");
+            return;
+        }
+
+        NetworkGenerator generator = new NetworkGenerator();
+        generator.nodes = Integer.parseInt(option(args, "--nodes", "100"));
+        generator.topology = Topology.parse(option(args, "--topology", "layered"));
+        generator.max_parents = Integer.parseInt(option(args, "--max-parents", "3"));
+        generator.layer_width = Integer.parseInt(option(args, "--layer-width", "0"));
+        generator.seed = Long.parseLong(option(args, "--seed", "1"));
+
+        String[] cardinality = option(args, "--cardinality", "2").split("-");
+        generator.min_cardinality = Integer.parseInt(cardinality[0]);
+        generator.max_cardinality = Integer.parseInt(cardinality[cardinality.length - 1]);
+
+        generator.generate();
+        generator.writeNetwork(network_file);
+
+        String query_file = option(args, "--queries", null);
+        if (query_file != null) {
+            generator.writeQueries(query_file, network_file,
+                    Integer.parseInt(option(args, "--query-count", "100")),
+                    Double.parseDouble(option(args, "--bayes-ball", "0.3")),
+                    Integer.parseInt(option(args, "--max-evidence", "3")),
+                    Arrays.asList(args).contains("--explicit-order"));
+        }
+    }
+
+    /*
+     * Draws the structure (parents and cardinalities) of the network.
+     */
+    public void generate() {
+        if (this.nodes < 1 || this.min_cardinality < 2 || this.max_cardinality < this.min_cardinality || this.max_parents < 0)
+            throw new IllegalArgumentException("Invalid generator parameters");
+
+        Random random = new Random(this.seed);
+        this.cardinalities = new int[this.nodes];
+        for (int i = 0; i < this.nodes; i++) {
+            this.cardinalities[i] = this.min_cardinality + random.nextInt(this.max_cardinality - this.min_cardinality + 1);
+        }
+
+        List<List<Integer>> parent_lists = new ArrayList<>();
+        for (int i = 0; i < this.nodes; i++) {
+            parent_lists.add(new ArrayList<>());
+        }
+
+        switch (this.topology) {
+            case CHAIN:
+                for (int i = 1; i < this.nodes && this.max_parents > 0; i++) {
+                    parent_lists.get(i).add(i - 1);
+                }
+                break;
+            case POLYTREE:
+                // Attach every node to an earlier one, pointing the edge whichever way the in-degree limit allows:
+                for (int i = 1; i < this.nodes; i++) {
+                    int other = random.nextInt(i);
+                    boolean into_other = random.nextBoolean();
+                    if (into_other && parent_lists.get(other).size() < this.max_parents) {
+                        parent_lists.get(other).add(i);
+                    } else if (this.max_parents > 0) {
+                        parent_lists.get(i).add(other);
+                    }
+                }
+                break;
+            case GRID:
+                int width = (int) Math.ceil(Math.sqrt(this.nodes));
+                for (int i = 0; i < this.nodes; i++) {
+                    if (i >= width && parent_lists.get(i).size() < this.max_parents)
+                        parent_lists.get(i).add(i - width);
+                    if (i % width != 0 && parent_lists.get(i).size() < this.max_parents)
+                        parent_lists.get(i).add(i - 1);
+                }
+                break;
+            case LAYERED:
+                int layer = this.layer_width > 0 ? this.layer_width : Math.max(2, (int) Math.round(Math.sqrt(this.nodes)));
+                for (int i = layer; i < this.nodes; i++) {
+                    int first = (i / layer - 1) * layer;
+                    List<Integer> candidates = new ArrayList<>();
+                    for (int p = first; p < first + layer; p++) {
+                        candidates.add(p);
+                    }
+                    // Partial Fisher-Yates shuffle: the first 'count' candidates become the parents
+                    int count = Math.min(candidates.size(), 1 + random.nextInt(Math.max(1, this.max_parents)));
+                    if (this.max_parents == 0)
+                        count = 0;
+                    for (int p = 0; p < count; p++) {
+                        int swap = p + random.nextInt(candidates.size() - p);
+                        int candidate = candidates.get(swap);
+                        candidates.set(swap, candidates.get(p));
+                        parent_lists.get(i).add(candidate);
+                    }
+                }
+                break;
+        }
+
+        this.parents = new int[this.nodes][];
+        for (int i = 0; i < this.nodes; i++) {
+            this.parents[i] = parent_lists.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    public static String name(int node) {
+        return "X" + node;
+    }
+
+    public static String outcome(int value) {
+        return "v" + value;
+    }
+
+    /*
+     * Writes the network in XMLBIF: all <VARIABLE>s, then one <DEFINITION> per node whose table rows (parents in
+     * <GIVEN> order, the node itself varying fastest) are random distributions.
+     */
+    public void writeNetwork(String file) throws IOException {
+        Random random = new Random(this.seed ^ 0x5DEECE66DL);
+
+        try (Writer writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            writer.write("<?xml version=\"1.0\"?>\n<NETWORK>\n<NAME>generated</NAME>\n\n");
+
+            for (int i = 0; i < this.nodes; i++) {
+                writer.write("<VARIABLE TYPE=\"nature\">\n\t<NAME>" + name(i) + "</NAME>\n");
+                for (int outcome = 0; outcome < this.cardinalities[i]; outcome++) {
+                    writer.write("\t<OUTCOME>" + outcome(outcome) + "</OUTCOME>\n");
+                }
+                writer.write("</VARIABLE>\n\n");
+            }
+
+            StringBuilder table = new StringBuilder();
+            double[] weights = new double[this.max_cardinality];
+            for (int i = 0; i < this.nodes; i++) {
+                writer.write("<DEFINITION>\n\t<FOR>" + name(i) + "</FOR>\n");
+                long rows = 1;
+                for (int parent: this.parents[i]) {
+                    writer.write("\t<GIVEN>" + name(parent) + "</GIVEN>\n");
+                    rows *= this.cardinalities[parent];
+                }
+
+                table.setLength(0);
+                for (long row = 0; row < rows; row++) {
+                    double total = 0;
+                    for (int outcome = 0; outcome < this.cardinalities[i]; outcome++) {
+                        weights[outcome] = 0.05 + random.nextDouble();
+                        total += weights[outcome];
+                    }
+                    for (int outcome = 0; outcome < this.cardinalities[i]; outcome++) {
+                        if (table.length() > 0)
+                            table.append(' ');
+                        table.append(weights[outcome] / total);
+                    }
+                }
+                writer.write("\t<TABLE>" + table + "</TABLE>\n</DEFINITION>\n\n");
+            }
+
+            writer.write("</NETWORK>\n");
+        }
+    }
+
+    /*
+     * Writes a query file: the network file name, then 'count' queries of which a 'bayes_ball_fraction' are
+     * independence queries (A-B|E=e,...) and the rest probability queries (P(Q=q|E=e,...)) with one to
+     * 'max_evidence' observed variables. Probability queries leave the elimination order to the planner unless
+     * 'explicit_order' is set, in which case every other variable is listed in a random order.
+     */
+    public void writeQueries(String file, String network_file, int count, double bayes_ball_fraction, int max_evidence, boolean explicit_order) throws IOException {
+        Random random = new Random(this.seed ^ 0x2545F4914F6CDD1DL);
+
+        try (Writer writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            writer.write(network_file);
+
+            for (int q = 0; q < count; q++) {
+                writer.write('\n');
+                boolean bayes_ball = this.nodes >= 2 && random.nextDouble() < bayes_ball_fraction;
+
+                // Independence queries may have no evidence, probability queries have at least one observed variable:
+                int evidence_start = bayes_ball ? 2 : 1;
+                int evidence_count = bayes_ball ? random.nextInt(max_evidence + 1) : 1 + random.nextInt(Math.max(1, max_evidence));
+                int[] variables = distinctNodes(random, evidence_start + evidence_count);
+
+                StringBuilder query = new StringBuilder();
+                if (bayes_ball) {
+                    query.append(name(variables[0])).append('-').append(name(variables[1])).append('|');
+                } else {
+                    int value = random.nextInt(this.cardinalities[variables[0]]);
+                    query.append("P(").append(name(variables[0])).append('=').append(outcome(value)).append('|');
+                }
+
+                for (int e = evidence_start; e < variables.length; e++) {
+                    if (e > evidence_start)
+                        query.append(',');
+                    int value = random.nextInt(this.cardinalities[variables[e]]);
+                    query.append(name(variables[e])).append('=').append(outcome(value));
+                }
+
+                if (!bayes_ball) {
+                    query.append(')');
+                    if (explicit_order) {
+                        boolean[] used = new boolean[this.nodes];
+                        for (int variable: variables) {
+                            used[variable] = true;
+                        }
+                        int[] hidden = distinctNodes(random, this.nodes);
+                        String separator = " ";
+                        for (int variable: hidden) {
+                            if (used[variable])
+                                continue;
+                            query.append(separator).append(name(variable));
+                            separator = "-";
+                        }
+                    }
+                }
+                writer.write(query.toString());
+            }
+        }
+    }
+
+    /*
+     * Returns 'count' distinct random nodes (at most the node count).
+     */
+    private int[] distinctNodes(Random random, int count) {
+        count = Math.min(count, this.nodes);
+        int[] permutation = new int[this.nodes];
+        for (int i = 0; i < this.nodes; i++) {
+            permutation[i] = i;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int swap = i + random.nextInt(this.nodes - i);
+            int node = permutation[swap];
+            permutation[swap] = permutation[i];
+            permutation[i] = node;
+        }
+        return Arrays.copyOf(permutation, count);
+    }
+
+    private static String option(String[] args, String option, String default_value) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            if (args[i].equals(option))
+                return args[i + 1];
+        }
+        return default_value;
+    }
+}
@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Prunes the network down to the CPTs a query depends on, before any factor is built, in time linear in the size of
+ * the network:
+ *   1. barren nodes: only the query variable, the evidence and their ancestors are kept
+ *   2. irrelevant nodes: one Bayes Ball pass from the query variable finds the variables d-separated from it by the
+ *      evidence, and every CPT that mentions one of them (as an unobserved variable) is dropped
+ *   3. evidence absorption: a CPT whose variables are all observed reduces to a constant and is dropped; the
+ *      others shrink to their unobserved variables when their factors are built
+ */
+public class NetworkPruner {
+    /*
+     * The kept elements (in network order) and what was pruned.
+     */
+    public static class Result {
+        public final List<BayesianNetworkElement> elements;
+        public int barren_nodes;
+        public int irrelevant_nodes;
+        public int absorbed_nodes;
+        public long cells_before;   // cells of every CPT in the network
+        public long cells_after;    // cells of the kept CPTs once reduced by the evidence
+
+        Result(List<BayesianNetworkElement> elements) {
+            this.elements = elements;
+        }
+
+        public int prunedNodes() {
+            return this.barren_nodes + this.irrelevant_nodes + this.absorbed_nodes;
+        }
+
+        public String report() {
+            return String.format("pruned %d of %d nodes (%d barren, %d irrelevant, %d absorbed), %d -> %d cells",
+                    prunedNodes(), prunedNodes() + this.elements.size(), this.barren_nodes, this.irrelevant_nodes,
+                    this.absorbed_nodes, this.cells_before, this.cells_after);
+        }
+    }
+
+    /*
+     * Prunes the network for a query on 'query' given 'evidence' (the observed outcome of every variable, -1 for
+     * unobserved ones).
+     */
+    public static Result prune(CompiledNetwork network, int query, int[] evidence) {
+        int size = network.size();
+
+        // 1. The ancestral set of the query and the evidence:
+        boolean[] ancestral = ancestral(network, query, evidence);
+
+        // 2. Variables d-connected to the query variable, in a single traversal:
+        boolean[] connected = BayesBall.dConnected(network, query, evidence);
+
+        List<BayesianNetworkElement> elements = new ArrayList<>();
+        Result result = new Result(elements);
+        for (int id = 0; id < size; id++) {
+            result.cells_before += network.tables[id].capacity();
+            if (!ancestral[id]) {
+                result.barren_nodes++;
+                continue;
+            }
+
+            // The CPT's unobserved variables: dropped if one is irrelevant, absorbed if there are none
+            boolean irrelevant = evidence[id] == -1 && id != query && !connected[id];
+            long cells = evidence[id] == -1 ? network.cardinalities[id] : 1;
+            for (int parent: network.parents[id]) {
+                if (evidence[parent] == -1) {
+                    irrelevant |= parent != query && !connected[parent];
+                    cells *= network.cardinalities[parent];
+                }
+            }
+
+            if (irrelevant) {
+                result.irrelevant_nodes++;
+            } else if (cells <= 1) {
+                result.absorbed_nodes++;
+            } else {
+                elements.add(network.element(id));
+                result.cells_after += cells;
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Marks the query variable, the evidence and all their ancestors (every node is queued at most once). The other
+     * variables are barren: summing them out gives 1.
+     */
+    static boolean[] ancestral(CompiledNetwork network, int query, int[] evidence) {
+        int size = network.size();
+        boolean[] ancestral = new boolean[size];
+        int[] stack = new int[size];
+        int top = 0;
+        for (int id = 0; id < size; id++) {
+            if (id == query || evidence[id] != -1) {
+                ancestral[id] = true;
+                stack[top++] = id;
+            }
+        }
+        while (top > 0) {
+            int node = stack[--top];
+            for (int parent: network.parents[node]) {
+                if (!ancestral[parent]) {
+                    ancestral[parent] = true;
+                    stack[top++] = parent;
+                }
+            }
+        }
+        return ancestral;
+    }
+}
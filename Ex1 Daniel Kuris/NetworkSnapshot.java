@@ -0,0 +1,197 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A compact binary snapshot of a parsed network, loaded by memory-mapping the file.
+ *
+ * Layout (header and variables big-endian, as written by DataOutputStream):
+ *   header:    magic "BNSN", format version, variable count, table section offset, table byte order
+ *   variables: for every variable its name, outcomes, parent ids and table length
+ *   tables:    all CPTs as doubles in the byte order of the writing machine (0 = big-endian, 1 = little-endian),
+ *              starting at an 8-byte aligned offset, in variable order
+ *
+ * The CPTs are not copied: 'tables' holds read-only views directly over the mapping, which the compiled network
+ * (new CompiledNetwork(snapshot.network, snapshot.tables)) and every engine read in place, so the operating system
+ * pages them in on first use and shares them between processes. The elements of 'network' have no heap table.
+ * Tables written on a machine of the same byte order are read without a byte swap.
+ */
+public class NetworkSnapshot {
+    public static final int MAGIC = 0x424E534E; // "BNSN"
+    public static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 20;
+
+    private static final int BIG_ENDIAN = 0;
+    private static final int LITTLE_ENDIAN = 1;
+
+    public final List<BayesianNetworkElement> network;
+    // Views of the CPTs over the mapped file, in variable order (each view keeps the mapping alive):
+    public final DoubleBuffer[] tables;
+
+    private NetworkSnapshot(List<BayesianNetworkElement> network, DoubleBuffer[] tables) {
+        this.network = network;
+        this.tables = tables;
+    }
+
+    /*
+     * Writes the network to a snapshot file.
+     */
+    public static void write(CompiledNetwork network, String snapshot_file) throws IOException {
+        // The variable section comes first, so its size decides where the tables start:
+        ByteArrayOutputStream variables_bytes = new ByteArrayOutputStream();
+        DataOutputStream variables = new DataOutputStream(variables_bytes);
+        for (int id = 0; id < network.size(); id++) {
+            writeString(variables, network.names[id]);
+            variables.writeInt(network.cardinalities[id]);
+            for (String outcome: network.outcomes[id]) {
+                writeString(variables, outcome);
+            }
+            variables.writeInt(network.parents[id].length);
+            for (int parent: network.parents[id]) {
+                variables.writeInt(parent);
+            }
+            variables.writeInt(network.tables[id] == null ? 0 : network.tables[id].capacity());
+        }
+        variables.flush();
+
+        int tables_offset = align(HEADER_SIZE + variables_bytes.size());
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot_file), 1 << 16))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(network.size());
+            output.writeInt(tables_offset);
+            output.writeInt(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? BIG_ENDIAN : LITTLE_ENDIAN);
+            variables_bytes.writeTo(output);
+            for (int i = HEADER_SIZE + variables_bytes.size(); i < tables_offset; i++) {
+                output.writeByte(0);
+            }
+
+            for (DoubleBuffer table: network.tables) {
+                if (table == null)
+                    continue;
+                ByteBuffer bytes = ByteBuffer.allocate(table.capacity() * Double.BYTES).order(ByteOrder.nativeOrder());
+                bytes.asDoubleBuffer().put(table.duplicate());
+                output.write(bytes.array());
+            }
+        }
+    }
+
+    /*
+     * Memory-maps a snapshot file and rebuilds the network from it.
+     */
+    public static NetworkSnapshot load(String snapshot_file) throws IOException {
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(Paths.get(snapshot_file), StandardOpenOption.READ)) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapping.order(ByteOrder.BIG_ENDIAN);
+
+        if (mapping.remaining() < HEADER_SIZE || mapping.getInt(0) != MAGIC)
+            throw new IOException(snapshot_file + " is not a network snapshot");
+        int version = mapping.getInt(4);
+        if (version != VERSION)
+            throw new IOException("Unsupported snapshot version " + version + " in " + snapshot_file);
+
+        int size = mapping.getInt(8);
+        int tables_offset = mapping.getInt(12);
+        ByteOrder table_order = mapping.getInt(16) == BIG_ENDIAN ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        List<BayesianNetworkElement> network = new ArrayList<>(size);
+        int[][] parents = new int[size][];
+        int[] table_offsets = new int[size];
+        int[] table_lengths = new int[size];
+
+        ByteBuffer variables = mapping.duplicate().order(ByteOrder.BIG_ENDIAN);
+        variables.position(HEADER_SIZE);
+        int table_offset = tables_offset;
+        for (int id = 0; id < size; id++) {
+            String name = readString(variables);
+            int cardinality = variables.getInt();
+            List<String> outcomes = new ArrayList<>(cardinality);
+            for (int i = 0; i < cardinality; i++) {
+                outcomes.add(readString(variables));
+            }
+
+            parents[id] = new int[variables.getInt()];
+            for (int i = 0; i < parents[id].length; i++) {
+                parents[id][i] = variables.getInt();
+            }
+
+            table_offsets[id] = table_offset;
+            table_lengths[id] = variables.getInt();
+            table_offset += table_lengths[id] * Double.BYTES;
+
+            network.add(new BayesianNetworkElement(name, outcomes));
+        }
+
+        if (table_offset > mapping.capacity())
+            throw new IOException("Truncated snapshot " + snapshot_file);
+
+        DoubleBuffer[] tables = new DoubleBuffer[size];
+        for (int id = 0; id < size; id++) {
+            BayesianNetworkElement element = network.get(id);
+            element.given = new ArrayList<>(parents[id].length);
+            for (int parent: parents[id]) {
+                element.given.add(network.get(parent));
+            }
+
+            // A read-only view of the CPT directly over the mapped file, in the byte order the snapshot recorded:
+            ByteBuffer view = mapping.duplicate();
+            view.position(table_offsets[id]);
+            view.limit(table_offsets[id] + table_lengths[id] * Double.BYTES);
+            tables[id] = view.slice().order(table_order).asDoubleBuffer();
+        }
+
+        return new NetworkSnapshot(network, tables);
+    }
+
+    /*
+     * Returns true if the file starts with the snapshot magic number.
+     */
+    public static boolean isSnapshot(String file) throws IOException {
+        Path path = Paths.get(file);
+        if (!Files.isRegularFile(path) || Files.size(path) < HEADER_SIZE)
+            return false;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) != -1) {
+                // Keep reading until the 4 magic bytes are in.
+            }
+            magic.flip();
+            return magic.remaining() == 4 && magic.getInt() == MAGIC;
+        }
+    }
+
+    private static int align(int offset) {
+        return (offset + Double.BYTES - 1) & -Double.BYTES;
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer input) {
+        byte[] bytes = new byte[input.getInt()];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
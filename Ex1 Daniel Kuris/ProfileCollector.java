@@ -0,0 +1,249 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Instrumentation that aggregates the profiles of all queries into totals and power-of-two histograms (query time,
+ * join and sum-out time, factors per query, largest factor, cells touched, Bayes Ball visits), optionally printing
+ * every profile on stderr as its query ends and keeping every profile for writeQueries(). The aggregate and the
+ * per-query profiles are written as JSON or CSV ('--profile json|csv' in Ex1 writes profile.json / profile.csv and
+ * profile-queries.json / profile-queries.csv next to output.txt).
+ */
+public class ProfileCollector extends Instrumentation {
+    // The columns of a per-query profile, in the order of the values kept for it:
+    private static final String[] QUERY_FIELDS = {"query", "engine", "nanos", "result_cache_hit", "factors_created",
+            "cells_created", "largest_factor_cells", "cells_touched", "joins", "join_nanos", "sum_outs", "sum_out_nanos",
+            "bayes_ball_visits", "samples", "factor_cache_hits", "factor_cache_misses"};
+
+    private final boolean print_queries;
+    private final boolean keep_queries;
+    private int next_index;
+    // The kept per-query profiles as {index, values in QUERY_FIELDS order}, in the order the queries ended:
+    private final List<Object[]> query_rows = new ArrayList<>();
+
+    private long queries;
+    private long result_cache_hits;
+    private long factor_cache_hits;
+    private long factor_cache_misses;
+    private long factors_created;
+    private long cells_created;
+    private long cells_touched;
+    private long largest_factor;
+    private long bayes_ball_visits;
+    private long samples;
+    private final Map<String, Long> engines = new TreeMap<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+
+    public ProfileCollector(boolean print_queries, boolean keep_queries) {
+        this.print_queries = print_queries;
+        this.keep_queries = keep_queries;
+        for (String name: new String[]{"query_nanos", "join_nanos", "sum_out_nanos", "factors_per_query",
+                "largest_factor_cells", "cells_touched", "bayes_ball_visits"}) {
+            this.histograms.put(name, new Histogram());
+        }
+    }
+
+    public QueryProfile begin(String query) {
+        QueryProfile profile = new QueryProfile(query);
+        synchronized (this) {
+            profile.index = this.next_index++;
+        }
+        return profile;
+    }
+
+    public void end(QueryProfile profile) {
+        if (this.print_queries)
+            System.err.println(profile.report());
+
+        synchronized (this) {
+            if (this.keep_queries) {
+                this.query_rows.add(new Object[]{profile.index, profile.query, profile.engine, profile.nanos,
+                        profile.result_cache_hit, profile.factors_created, profile.cells_created, profile.largest_factor,
+                        profile.cells_touched, profile.joins, profile.join_nanos, profile.sum_outs, profile.sum_out_nanos,
+                        profile.bayes_ball_visits, profile.samples, profile.factor_cache_hits, profile.factor_cache_misses});
+            }
+            this.queries++;
+            this.histograms.get("query_nanos").record(profile.nanos);
+            if (profile.result_cache_hit) {
+                this.result_cache_hits++;
+                return;
+            }
+
+            this.engines.merge(profile.engine, 1L, Long::sum);
+            this.factor_cache_hits += profile.factor_cache_hits;
+            this.factor_cache_misses += profile.factor_cache_misses;
+            this.factors_created += profile.factors_created;
+            this.cells_created += profile.cells_created;
+            this.cells_touched += profile.cells_touched;
+            this.largest_factor = Math.max(this.largest_factor, profile.largest_factor);
+            this.bayes_ball_visits += profile.bayes_ball_visits;
+            this.samples += profile.samples;
+            this.histograms.get("join_nanos").add(profile.join_times);
+            this.histograms.get("sum_out_nanos").add(profile.sum_out_times);
+
+            // Per-query histograms only count the queries of the engines they describe:
+            if (profile.bayes_ball_visits > 0) {
+                this.histograms.get("bayes_ball_visits").record(profile.bayes_ball_visits);
+            } else if (profile.factors_created > 0 || profile.factor_cache_hits > 0) {
+                this.histograms.get("factors_per_query").record(profile.factors_created);
+                this.histograms.get("largest_factor_cells").record(profile.largest_factor);
+                this.histograms.get("cells_touched").record(profile.cells_touched);
+            }
+        }
+    }
+
+    /*
+     * Writes the aggregate to 'file' as "json" or "csv".
+     */
+    public synchronized void write(String file, String format) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            if (format.equals("json")) {
+                writeJson(writer);
+            } else if (format.equals("csv")) {
+                writeCsv(writer);
+            } else {
+                throw new IllegalArgumentException("Unknown profile format '" + format + "'");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /*
+     * Writes the kept per-query profiles to 'file' as "json" (an array of objects) or "csv" (a row per query), in
+     * input order. A result cache hit has no engine and records nothing but its time.
+     */
+    public synchronized void writeQueries(String file, String format) throws IOException {
+        this.query_rows.sort(Comparator.comparingInt(row -> (Integer) row[0]));
+        FileWriter writer = new FileWriter(file);
+        try {
+            if (format.equals("json")) {
+                writer.write("[");
+                String comma = "\n";
+                for (Object[] row: this.query_rows) {
+                    writer.write(comma + "  {");
+                    for (int i = 0; i < QUERY_FIELDS.length; i++) {
+                        Object value = row[i + 1];
+                        writer.write((i == 0 ? "" : ", ") + "\"" + QUERY_FIELDS[i] + "\": "
+                                + (value instanceof String ? jsonString((String) value) : String.valueOf(value)));
+                    }
+                    writer.write("}");
+                    comma = ",\n";
+                }
+                writer.write(this.query_rows.isEmpty() ? "]\n" : "\n]\n");
+            } else if (format.equals("csv")) {
+                writer.write(String.join(",", QUERY_FIELDS) + "\n");
+                for (Object[] row: this.query_rows) {
+                    for (int i = 0; i < QUERY_FIELDS.length; i++) {
+                        Object value = row[i + 1];
+                        writer.write((i == 0 ? "" : ",") + (value == null ? "" : value instanceof String ? csvString((String) value) : value));
+                    }
+                    writer.write("\n");
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown profile format '" + format + "'");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeJson(FileWriter writer) throws IOException {
+        writer.write("{\n");
+        writer.write("  \"queries\": " + this.queries + ",\n");
+        writer.write("  \"result_cache_hits\": " + this.result_cache_hits + ",\n");
+        writer.write("  \"engines\": {");
+        String comma = "";
+        for (Map.Entry<String, Long> engine: this.engines.entrySet()) {
+            writer.write(comma + "\"" + engine.getKey() + "\": " + engine.getValue());
+            comma = ", ";
+        }
+        writer.write("},\n");
+        writer.write("  \"factor_cache_hits\": " + this.factor_cache_hits + ",\n");
+        writer.write("  \"factor_cache_misses\": " + this.factor_cache_misses + ",\n");
+        writer.write("  \"factors_created\": " + this.factors_created + ",\n");
+        writer.write("  \"cells_created\": " + this.cells_created + ",\n");
+        writer.write("  \"cells_touched\": " + this.cells_touched + ",\n");
+        writer.write("  \"largest_factor_cells\": " + this.largest_factor + ",\n");
+        writer.write("  \"bayes_ball_visits\": " + this.bayes_ball_visits + ",\n");
+        writer.write("  \"samples\": " + this.samples + ",\n");
+
+        // Every histogram with its non-empty buckets as [largest value in the bucket, count] pairs:
+        writer.write("  \"histograms\": {\n");
+        comma = "";
+        for (Map.Entry<String, Histogram> entry: this.histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            writer.write(comma + String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"sum\": %d, \"max\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"buckets\": [",
+                    entry.getKey(), histogram.count, histogram.sum, histogram.max,
+                    histogram.percentile(0.50), histogram.percentile(0.90), histogram.percentile(0.99)));
+            String bucket_comma = "";
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                if (histogram.counts[i] == 0)
+                    continue;
+                writer.write(bucket_comma + "[" + Histogram.upperBound(i) + ", " + histogram.counts[i] + "]");
+                bucket_comma = ", ";
+            }
+            writer.write("]}");
+            comma = ",\n";
+        }
+        writer.write("\n  }\n}\n");
+    }
+
+    // A "total" row per total and an "engine" row per engine (the queries it answered), then a "histogram" row per
+    // non-empty bucket, where 'le' is the largest value the bucket counts:
+    private void writeCsv(FileWriter writer) throws IOException {
+        writer.write("kind,name,le,value\n");
+        Map<String, Long> totals = new LinkedHashMap<>();
+        totals.put("queries", this.queries);
+        totals.put("result_cache_hits", this.result_cache_hits);
+        totals.put("factor_cache_hits", this.factor_cache_hits);
+        totals.put("factor_cache_misses", this.factor_cache_misses);
+        totals.put("factors_created", this.factors_created);
+        totals.put("cells_created", this.cells_created);
+        totals.put("cells_touched", this.cells_touched);
+        totals.put("largest_factor_cells", this.largest_factor);
+        totals.put("bayes_ball_visits", this.bayes_ball_visits);
+        totals.put("samples", this.samples);
+        for (Map.Entry<String, Long> total: totals.entrySet()) {
+            writer.write("total," + total.getKey() + ",," + total.getValue() + "\n");
+        }
+        for (Map.Entry<String, Long> engine: this.engines.entrySet()) {
+            writer.write("engine," + engine.getKey() + ",," + engine.getValue() + "\n");
+        }
+
+        for (Map.Entry<String, Histogram> entry: this.histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            for (int i = 0; i < Histogram.BUCKETS; i++) {
+                if (histogram.counts[i] != 0)
+                    writer.write("histogram," + entry.getKey() + "," + Histogram.upperBound(i) + "," + histogram.counts[i] + "\n");
+            }
+        }
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    // Query texts contain commas, so they are always quoted (with quotes doubled):
+    private static String csvString(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Per-query options, given as 'key=value' tokens after the elimination order of a probability query:
+ *   P(B=T|J=T,M=T) A-E engine=jt
+ *   P(B=T|J=T,M=T) A-E arithmetic=log
+ *   P(B=T|J=T,M=T) A-E storage=float
+ *   P(B=T|J=T,M=T) A-E schedule=parallel
+ *   P(B=T|J=T,M=T) engine=lw samples=200000 seed=7
+ *   P(B=T|J=T,M=T) engine=gibbs time=50
+ *   P(B=T|J=T,M=T) max-factor=4096
+ *   P(B=T|J=T,M=T) engine=enumeration schedule=parallel
+ */
+public class QueryOptions {
+    public static final String ENGINE_VE = "ve";
+    public static final String ENGINE_JT = "jt";
+    public static final String ENGINE_LW = "lw";
+    public static final String ENGINE_GIBBS = "gibbs";
+    public static final String ENGINE_ENUMERATION = "enumeration";
+    public static final String ARITHMETIC_LINEAR = "linear";
+    public static final String ARITHMETIC_LOG = "log";
+    public static final String SCHEDULE_SEQUENTIAL = "sequential";
+    public static final String SCHEDULE_PARALLEL = "parallel";
+
+    // Inference engine: variable elimination ("ve"), junction tree ("jt"), the approximate likelihood weighting
+    // ("lw") and Gibbs sampling ("gibbs") engines of ApproximateInference, or the full-joint enumeration of
+    // BayesianNetworkTools ("enumeration", the exact reference answer, exponential in the number of free variables)
+    public String engine = ENGINE_VE;
+
+    // Factor arithmetic: plain probabilities ("linear") or logarithms ("log", for networks whose products underflow)
+    public String arithmetic = ARITHMETIC_LINEAR;
+
+    // Factor tables: double precision ("double") or single precision ("float", half the memory)
+    public String storage = FactorStorage.DOUBLE;
+
+    // Elimination steps: one after the other ("sequential") or independent branches concurrently ("parallel"); for
+    // the enumeration, the joint assignments in one task or split across the common ForkJoinPool
+    public String schedule = SCHEDULE_SEQUENTIAL;
+
+    // Budget of the sampling engines: at most 'samples' samples and at most 'time_millis' milliseconds (0 leaves a
+    // bound out; with neither, ApproximateInference.DEFAULT_SAMPLES are drawn), from the given random seed
+    public long samples = 0;
+    public long time_millis = 0;
+    public long seed = 1;
+
+    // Largest factor (in cells) a VE query may create: a query whose elimination is predicted to create a larger one is
+    // rejected before it runs (0 means no limit)
+    public long max_factor_cells = 0;
+
+    /*
+     * Parses the option tokens. Unknown keys or values throw IllegalArgumentException.
+     */
+    public static QueryOptions parse(String[] tokens) {
+        QueryOptions options = new QueryOptions();
+        boolean sampling_options = false;
+
+        for (String token: tokens) {
+            int separator = token.indexOf('=');
+            if (separator == -1)
+                throw new IllegalArgumentException("Option '" + token + "' is not of the form key=value");
+
+            String key = token.substring(0, separator).trim();
+            String value = token.substring(separator + 1).trim();
+            if (key.equals("engine")) {
+                if (!value.equals(ENGINE_VE) && !value.equals(ENGINE_JT) && !value.equals(ENGINE_LW) && !value.equals(ENGINE_GIBBS)
+                        && !value.equals(ENGINE_ENUMERATION))
+                    throw new IllegalArgumentException("Unknown engine '" + value + "'");
+                options.engine = value;
+            } else if (key.equals("arithmetic")) {
+                if (!value.equals(ARITHMETIC_LINEAR) && !value.equals(ARITHMETIC_LOG))
+                    throw new IllegalArgumentException("Unknown arithmetic '" + value + "'");
+                options.arithmetic = value;
+            } else if (key.equals("storage")) {
+                if (!value.equals(FactorStorage.DOUBLE) && !value.equals(FactorStorage.FLOAT))
+                    throw new IllegalArgumentException("Unknown storage '" + value + "'");
+                options.storage = value;
+            } else if (key.equals("schedule")) {
+                if (!value.equals(SCHEDULE_SEQUENTIAL) && !value.equals(SCHEDULE_PARALLEL))
+                    throw new IllegalArgumentException("Unknown schedule '" + value + "'");
+                options.schedule = value;
+            } else if (key.equals("samples") || key.equals("time")) {
+                long budget = parseNumber(key, value);
+                if (budget <= 0)
+                    throw new IllegalArgumentException("The " + key + " budget must be positive");
+                if (key.equals("samples")) {
+                    options.samples = budget;
+                } else {
+                    options.time_millis = budget;
+                }
+                sampling_options = true;
+            } else if (key.equals("seed")) {
+                options.seed = parseNumber(key, value);
+                sampling_options = true;
+            } else if (key.equals("max-factor")) {
+                options.max_factor_cells = parseNumber(key, value);
+                if (options.max_factor_cells <= 0)
+                    throw new IllegalArgumentException("The max-factor limit must be positive");
+            } else {
+                throw new IllegalArgumentException("Unknown option '" + key + "'");
+            }
+        }
+
+        // The junction tree only calibrates linear double precision tables:
+        if (options.engine.equals(ENGINE_JT) && !options.arithmetic.equals(ARITHMETIC_LINEAR))
+            throw new IllegalArgumentException("The junction tree engine only supports linear arithmetic");
+        if (options.engine.equals(ENGINE_JT) && !options.storage.equals(FactorStorage.DOUBLE))
+            throw new IllegalArgumentException("The junction tree engine only supports double storage");
+        if (options.engine.equals(ENGINE_JT) && !options.schedule.equals(SCHEDULE_SEQUENTIAL))
+            throw new IllegalArgumentException("The junction tree engine has no elimination schedule");
+        // The enumeration multiplies CPT entries directly and builds no factor tables:
+        if (options.engine.equals(ENGINE_ENUMERATION) && !options.storage.equals(FactorStorage.DOUBLE))
+            throw new IllegalArgumentException("The enumeration engine has no factor storage");
+        // The sampling engines draw from the CPTs directly, so factor options do not apply to them (nor budgets to the others):
+        boolean sampling = options.engine.equals(ENGINE_LW) || options.engine.equals(ENGINE_GIBBS);
+        if (sampling && (!options.arithmetic.equals(ARITHMETIC_LINEAR) || !options.storage.equals(FactorStorage.DOUBLE)
+                || !options.schedule.equals(SCHEDULE_SEQUENTIAL)))
+            throw new IllegalArgumentException("The sampling engines take no arithmetic, storage or schedule options");
+        if (!sampling && sampling_options)
+            throw new IllegalArgumentException("Sample budgets and seeds only apply to engine=lw and engine=gibbs");
+        // The limit is checked against the planned elimination, which only the VE engine has:
+        if (options.max_factor_cells > 0 && !options.engine.equals(ENGINE_VE))
+            throw new IllegalArgumentException("The max-factor limit only applies to engine=ve");
+        // Error bounds of single precision tables are tracked for linear arithmetic only:
+        if (options.arithmetic.equals(ARITHMETIC_LOG) && !options.storage.equals(FactorStorage.DOUBLE))
+            throw new IllegalArgumentException("Log arithmetic needs double storage");
+
+        return options;
+    }
+
+    private static long parseNumber(String key, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option '" + key + "' needs a whole number, not '" + value + "'");
+        }
+    }
+}
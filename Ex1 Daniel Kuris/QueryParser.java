@@ -0,0 +1,228 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Parses a query line in a single pass and resolves every name against the network, producing a CompiledQuery:
+ *   P(B=T|J=T,M=T) A-E engine=ve     probability query, optional elimination order ('auto', 'auto:<heuristic>' or
+ *                                    empty to plan one) and key=value options
+ *   B-E|J=T                          independence of two variables given the evidence (outcomes optional)
+ *   A-*|J=T  A,B-C,D|J  *-*|         independence of every source from every target ('*' = every unobserved
+ *                                    variable)
+ * Malformed queries and unknown variables, outcomes, options or heuristics do not throw: they produce an invalid
+ * query that says what is wrong.
+ */
+public class QueryParser {
+    private final CompiledNetwork network;
+    private final String text;
+    private int position;
+
+    private QueryParser(CompiledNetwork network, String text) {
+        this.network = network;
+        this.text = text;
+    }
+
+    public static CompiledQuery parse(CompiledNetwork network, String line) {
+        String text = line.trim();
+        QueryParser parser = new QueryParser(network, text);
+        try {
+            if (text.isEmpty())
+                throw new IllegalArgumentException("Empty query");
+            return text.startsWith("P(") ? parser.probability() : parser.independence();
+        } catch (IllegalArgumentException e) {
+            return CompiledQuery.invalid(text, e.getMessage());
+        }
+    }
+
+    /*
+     * Compiles a probability query given in parts (the 'B=T', 'J=T,M=T' and order arguments of the string based
+     * engine methods). Invalid queries throw IllegalArgumentException here, as these callers return a number.
+     */
+    public static CompiledQuery parseProbability(CompiledNetwork network, String request_left, String request_right, String elimination_order) {
+        CompiledQuery query = parse(network, "P(" + request_left + "|" + request_right + ") " + elimination_order);
+        if (query.kind != CompiledQuery.Kind.PROBABILITY)
+            throw new IllegalArgumentException(query.error == null ? "Not a probability query" : query.error);
+        return query;
+    }
+
+    private CompiledQuery probability() {
+        this.position = 2;
+
+        int variable = variableId(until("=|)"));
+        expect('=');
+        int outcome = outcomeId(variable, until("|)"));
+
+        int[] evidence = noEvidence();
+        if (accept('|')) {
+            do {
+                String name = until("=,)");
+                if (name.isEmpty() && !peek('='))
+                    continue; // 'P(B=T|)' and stray commas name no variable
+                int id = variableId(name);
+                expect('=');
+                evidence[id] = outcomeId(id, until(",)"));
+            } while (accept(','));
+        }
+        expect(')');
+
+        // The rest holds at most one elimination order, then key=value options:
+        String order = null;
+        List<String> option_tokens = new ArrayList<>();
+        for (String token = nextToken(); token != null; token = nextToken()) {
+            if (token.indexOf('=') != -1) {
+                option_tokens.add(token);
+            } else if (order == null) {
+                order = token;
+            } else {
+                throw new IllegalArgumentException("Unexpected '" + token + "' after the elimination order");
+            }
+        }
+        QueryOptions options = QueryOptions.parse(option_tokens.toArray(new String[0]));
+
+        if (order == null || VariableElimination.isAutomaticOrder(order)) {
+            EliminationOrderPlanner.Heuristic heuristic = EliminationOrderPlanner.Heuristic.MIN_FILL;
+            if (order != null && order.startsWith("auto:")) {
+                String name = order.substring("auto:".length());
+                try {
+                    heuristic = EliminationOrderPlanner.Heuristic.parse(name);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown heuristic '" + name + "'");
+                }
+            }
+            return CompiledQuery.probability(this.text, variable, outcome, evidence, null, heuristic, options);
+        }
+
+        int[] elimination_order = new int[order.length()];
+        int count = 0;
+        int start = 0;
+        for (int i = 0; i <= order.length(); i++) {
+            if (i == order.length() || order.charAt(i) == '-') {
+                if (i > start)
+                    elimination_order[count++] = variableId(order.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return CompiledQuery.probability(this.text, variable, outcome, evidence,
+                Arrays.copyOf(elimination_order, count), null, options);
+    }
+
+    private CompiledQuery independence() {
+        String source_set = until("-|");
+        expect('-');
+        String target_set = until("|");
+
+        // Evidence names, with an optional (checked, otherwise unused) outcome:
+        int[] evidence = noEvidence();
+        if (accept('|')) {
+            do {
+                String name = until("=,");
+                if (name.isEmpty() && !peek('='))
+                    continue;
+                int id = variableId(name);
+                evidence[id] = accept('=') ? outcomeId(id, until(",")) : 0;
+            } while (accept(','));
+        }
+        if (this.position < this.text.length())
+            throw new IllegalArgumentException("Unexpected '" + this.text.substring(this.position) + "'");
+
+        boolean batch = isSet(source_set) || isSet(target_set);
+        int[] sources = variableSet(source_set, evidence);
+        int[] targets = variableSet(target_set, evidence);
+        if (!batch)
+            return CompiledQuery.independence(this.text, sources, targets, false, false, evidence);
+
+        boolean grouped = sources.length != 1 || source_set.equals("*");
+        return CompiledQuery.independence(this.text, sources, targets, true, grouped, evidence);
+    }
+
+    private static boolean isSet(String set) {
+        return set.equals("*") || set.indexOf(',') != -1;
+    }
+
+    // '*' (every unobserved variable, in network order) or comma separated names:
+    private int[] variableSet(String set, int[] evidence) {
+        if (set.equals("*")) {
+            int[] ids = new int[this.network.size()];
+            int count = 0;
+            for (int id = 0; id < this.network.size(); id++) {
+                if (evidence[id] == -1)
+                    ids[count++] = id;
+            }
+            return Arrays.copyOf(ids, count);
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= set.length(); i++) {
+            if (i == set.length() || set.charAt(i) == ',') {
+                ids.add(variableId(set.substring(start, i)));
+                start = i + 1;
+            }
+        }
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    private int[] noEvidence() {
+        int[] evidence = new int[this.network.size()];
+        Arrays.fill(evidence, -1);
+        return evidence;
+    }
+
+    private int variableId(String name) {
+        int id = this.network.idOf(name.trim());
+        if (id == -1)
+            throw new IllegalArgumentException("Unknown variable '" + name.trim() + "'");
+        return id;
+    }
+
+    private int outcomeId(int variable, String outcome) {
+        int id = this.network.outcomeOf(variable, outcome.trim());
+        if (id == -1)
+            throw new IllegalArgumentException("Unknown outcome '" + outcome.trim() + "' of " + this.network.names[variable]);
+        return id;
+    }
+
+    // Reads up to the next of the 'stops' characters (or the end), trimmed:
+    private String until(String stops) {
+        int start = this.position;
+        while (this.position < this.text.length() && stops.indexOf(this.text.charAt(this.position)) == -1) {
+            this.position++;
+        }
+        return this.text.substring(start, this.position).trim();
+    }
+
+    private boolean peek(char c) {
+        return this.position < this.text.length() && this.text.charAt(this.position) == c;
+    }
+
+    private boolean accept(char c) {
+        if (!peek(c))
+            return false;
+        this.position++;
+        return true;
+    }
+
+    private void expect(char c) {
+        if (!accept(c))
+            throw new IllegalArgumentException("Expected '" + c + "' at position " + this.position);
+    }
+
+    // The next whitespace separated token, or null at the end:
+    private String nextToken() {
+        while (this.position < this.text.length() && Character.isWhitespace(this.text.charAt(this.position))) {
+            this.position++;
+        }
+        if (this.position == this.text.length())
+            return null;
+
+        int start = this.position;
+        while (this.position < this.text.length() && !Character.isWhitespace(this.text.charAt(this.position))) {
+            this.position++;
+        }
+        return this.text.substring(start, this.position);
+    }
+}
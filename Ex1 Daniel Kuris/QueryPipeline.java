@@ -0,0 +1,134 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/*
+ * Answers a query file of any length in constant memory ('--stream' in Ex1):
+ *   1. the calling thread reads one line at a time, reserves its answer (so duplicates resolve in input order) and
+ *      hands it to the executor, which plans and executes it
+ *   2. a writer thread takes the answers in input order, waits for each one and writes it out
+ * At most 'window' queries are between the two stages; when the writer falls behind, the reader blocks on the
+ * bounded queue (back-pressure), so neither the input nor the output is ever held in memory as a whole.
+ * The writer stage runs on 'writer_executor' (by default a new platform thread; InferenceServer passes its thread
+ * per task executor, so every connection gets its own writer thread). Results are separated by newlines, as in
+ * output.txt, or with 'terminate_lines' each one ends with a newline, so a client reading a connection line by line
+ * gets every answer as soon as it is written.
+ */
+public class QueryPipeline {
+    private static final int OUTPUT_BUFFER_CHARS = 1 << 16;
+
+    // Marks the end of the input in the queue:
+    private static final Future<String> END = CompletableFuture.completedFuture(null);
+
+    private final ExecutorService executor;
+    private final Function<String, Supplier<String>> answer;
+    private final BlockingQueue<Future<String>> pending;
+
+    // Runs the writer stage (a new platform thread unless a caller supplies its own):
+    private final Executor writer_executor;
+    // Every result ends with a newline (connections) instead of results only being separated by one (files):
+    private final boolean terminate_lines;
+
+    // First failure of a query or of the output; the reader stops and the writer drains the queue:
+    private volatile Throwable failure;
+    private long written;
+
+    public QueryPipeline(ExecutorService executor, int window, Function<String, Supplier<String>> answer) {
+        this(executor, window, answer, task -> new Thread(task, "query-writer").start(), false);
+    }
+
+    public QueryPipeline(ExecutorService executor, int window, Function<String, Supplier<String>> answer, Executor writer_executor, boolean terminate_lines) {
+        this.executor = executor;
+        this.answer = answer;
+        this.pending = new ArrayBlockingQueue<>(window);
+        this.writer_executor = writer_executor;
+        this.terminate_lines = terminate_lines;
+    }
+
+    /*
+     * Opens 'file' for the results, truncating it, as a buffered writer over a file channel.
+     */
+    public static Writer openOutput(String file) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return new BufferedWriter(Channels.newWriter(channel, Charset.defaultCharset().newEncoder(), -1), OUTPUT_BUFFER_CHARS);
+    }
+
+    /*
+     * Answers every remaining line of 'input' and writes the results to 'output', one per line in input order (no
+     * newline after the last one unless lines are terminated). Returns the number of results written. A failed query
+     * is rethrown as an ExecutionException once the queries already dispatched are done.
+     */
+    public long run(BufferedReader input, Writer output) throws IOException, InterruptedException, ExecutionException {
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> write(output), this.writer_executor);
+
+        try {
+            String line;
+            while (this.failure == null && (line = input.readLine()) != null) {
+                Supplier<String> result = this.answer.apply(line.trim());
+                this.pending.put(this.executor.submit(result::get));
+            }
+        } finally {
+            this.pending.put(END);
+            writer.join();
+        }
+
+        Throwable failure = this.failure;
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return this.written;
+    }
+
+    private void write(Writer output) {
+        try {
+            Future<String> next;
+            while ((next = this.pending.take()) != END) {
+                if (this.failure != null) {
+                    next.cancel(true);
+                    continue;
+                }
+
+                try {
+                    String result = next.get();
+                    if (!this.terminate_lines && this.written > 0)
+                        output.write('\n');
+                    output.write(result);
+                    if (this.terminate_lines)
+                        output.write('\n');
+                    this.written++;
+
+                    // Nothing else is ready yet, so let the results so far reach the file:
+                    if (this.pending.isEmpty())
+                        output.flush();
+                } catch (ExecutionException e) {
+                    this.failure = e.getCause();
+                } catch (IOException e) {
+                    this.failure = e;
+                }
+            }
+            output.flush();
+        } catch (InterruptedException e) {
+            this.failure = e;
+        } catch (IOException e) {
+            if (this.failure == null)
+                this.failure = e;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Where one query spent its time and memory, beyond the operation counts of MathematicalOperationsCounter: the
+ * factors it created, the largest table, the cells it touched, the time of every join and sum-out, the Bayes Ball
+ * nodes it visited and its cache lookups.
+ * A profile is only recorded when the counter of the query carries one (see Instrumentation); without it every
+ * recording site costs a null check. Like the counter, a profile is filled by one thread at a time.
+ */
+public class QueryProfile {
+    public final String query;
+    public int index;                   // position of the query among the profiled ones (set by ProfileCollector)
+    public String engine;               // the engine that computed the answer (null for result cache hits)
+    public long nanos;                  // wall time of the query, including waiting for a memoized answer
+    public boolean result_cache_hit;    // answered by another query's computation
+
+    // Factors created (reduced CPTs, joins and sum-outs), their cells and the largest of them:
+    public int factors_created;
+    public long cells_created;
+    public long largest_factor;
+
+    // Cells written by joins plus cells read by sum-outs:
+    public long cells_touched;
+
+    public int joins;
+    public long join_nanos;
+    public int sum_outs;
+    public long sum_out_nanos;
+
+    // Durations of the single joins and sum-outs, for the aggregate histograms:
+    public final Histogram join_times = new Histogram();
+    public final Histogram sum_out_times = new Histogram();
+
+    // Nodes queued by Bayes Ball traversals (a node counts twice when it is visited from both directions):
+    public long bayes_ball_visits;
+
+    // Samples (Gibbs: sweeps) drawn by the approximate engines:
+    public long samples;
+
+    // Factor cache lookups (taken from the counter once the query is answered):
+    public int factor_cache_hits;
+    public int factor_cache_misses;
+
+    public QueryProfile(String query) {
+        this.query = query;
+    }
+
+    public void factor(long cells) {
+        this.factors_created++;
+        this.cells_created += cells;
+        this.largest_factor = Math.max(this.largest_factor, cells);
+    }
+
+    public void join(long cells, long nanos) {
+        factor(cells);
+        this.cells_touched += cells;
+        this.joins++;
+        this.join_nanos += nanos;
+        this.join_times.record(nanos);
+    }
+
+    public void sumOut(long input_cells, long cells, long nanos) {
+        factor(cells);
+        this.cells_touched += input_cells;
+        this.sum_outs++;
+        this.sum_out_nanos += nanos;
+        this.sum_out_times.record(nanos);
+    }
+
+    public void visited(int nodes) {
+        this.bayes_ball_visits += nodes;
+    }
+
+    /*
+     * Adds the recordings of a profile filled by another thread for the same query (the parallel schedule).
+     */
+    public void add(QueryProfile other) {
+        this.factors_created += other.factors_created;
+        this.cells_created += other.cells_created;
+        this.largest_factor = Math.max(this.largest_factor, other.largest_factor);
+        this.cells_touched += other.cells_touched;
+        this.joins += other.joins;
+        this.join_nanos += other.join_nanos;
+        this.sum_outs += other.sum_outs;
+        this.sum_out_nanos += other.sum_out_nanos;
+        this.join_times.add(other.join_times);
+        this.sum_out_times.add(other.sum_out_times);
+        this.bayes_ball_visits += other.bayes_ball_visits;
+        this.samples += other.samples;
+    }
+
+    /*
+     * One line per query, e.g. for '--profile-queries':
+     *   P(B=T|J=T,M=T) A-E: ve 0.412 ms, 9 factors (58 cells, largest 16), 58 cells touched, 4 joins 0.031 ms, ...
+     */
+    public String report() {
+        if (this.result_cache_hit)
+            return String.format("%s: result cache hit %.3f ms", this.query, this.nanos / 1e6);
+
+        StringBuilder report = new StringBuilder(String.format("%s: %s %.3f ms", this.query, this.engine, this.nanos / 1e6));
+        if (this.factors_created > 0) {
+            report.append(String.format(", %d factors (%d cells, largest %d), %d cells touched, %d joins %.3f ms, %d sum-outs %.3f ms",
+                    this.factors_created, this.cells_created, this.largest_factor, this.cells_touched,
+                    this.joins, this.join_nanos / 1e6, this.sum_outs, this.sum_out_nanos / 1e6));
+        }
+        if (this.factor_cache_hits + this.factor_cache_misses > 0)
+            report.append(String.format(", factor cache %d/%d hits", this.factor_cache_hits, this.factor_cache_hits + this.factor_cache_misses));
+        if (this.bayes_ball_visits > 0)
+            report.append(", ").append(this.bayes_ball_visits).append(" bayes ball visits");
+        if (this.samples > 0)
+            report.append(", ").append(this.samples).append(" samples");
+        return report.toString();
+    }
+}
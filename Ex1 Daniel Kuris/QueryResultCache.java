@@ -0,0 +1,131 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+ * Memoizes answers of compiled queries under a canonical form of the query, so duplicates that differ only in
+ * whitespace, evidence order or (for probability queries) elimination order are answered once.
+ * The answer is the formatted output line, so a duplicate reports the operation counts of the first computation.
+ */
+public class QueryResultCache {
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+
+    /*
+     * Creates a cache holding at most 'capacity' answers.
+     */
+    public QueryResultCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /*
+     * Returns a supplier of the query's answer. The first query with a given canonical form is computed by its own
+     * 'computation'; later duplicates share that result (waiting for it if it is still running).
+     * Reserving in input order therefore keeps answers deterministic even when queries run concurrently.
+     */
+    public Supplier<String> memoize(CompiledQuery query, Supplier<String> computation) {
+        String key = canonicalKey(query);
+        if (key == null)
+            return computation;
+
+        Entry entry;
+        synchronized (this) {
+            entry = this.entries.get(key);
+            if (entry == null) {
+                entry = new Entry(computation);
+                this.entries.put(key, entry);
+                if (this.entries.size() > this.capacity)
+                    this.entries.remove(this.entries.keySet().iterator().next());
+            }
+        }
+
+        if (entry.computation == computation) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    public String report() {
+        return String.format("result cache: %d hits, %d misses", this.hits.get(), this.misses.get());
+    }
+
+    /*
+     * Returns the canonical form of a compiled query (in ids), or null if the query is invalid.
+     *   P(B=T|M=T, J=T) E-A    ->  P(B=T|J=T,M=T) with its options
+     *   J-B|M=T,A=F            ->  B-J|A,M         (independence only depends on which variables are observed)
+     */
+    public static String canonicalKey(CompiledQuery query) {
+        StringBuilder key = new StringBuilder();
+        if (query.kind == CompiledQuery.Kind.PROBABILITY) {
+            // Only the options matter; the elimination order is dropped, unless a max-factor limit makes the answer
+            // depend on it:
+            QueryOptions options = query.options;
+            key.append("P(").append(query.variable).append('=').append(query.outcome).append('|');
+            appendEvidence(key, query.evidence, false);
+            key.append(") ").append(options.engine).append(',').append(options.arithmetic)
+                    .append(',').append(options.storage).append(',').append(options.schedule)
+                    .append(',').append(options.samples).append(',').append(options.time_millis).append(',').append(options.seed)
+                    .append(',').append(options.max_factor_cells);
+            if (options.max_factor_cells > 0)
+                key.append(',').append(query.elimination_order == null ? query.heuristic : Arrays.toString(query.elimination_order));
+        } else if (query.kind == CompiledQuery.Kind.INDEPENDENCE) {
+            // Independence is symmetric in a simple pair of variables:
+            key.append(Math.min(query.sources[0], query.targets[0])).append('-').append(Math.max(query.sources[0], query.targets[0])).append('|');
+            appendEvidence(key, query.evidence, true);
+        } else if (query.kind == CompiledQuery.Kind.INDEPENDENCE_BATCH) {
+            key.append(query.grouped ? "G" : "S").append(Arrays.toString(query.sources)).append('-').append(Arrays.toString(query.targets)).append('|');
+            appendEvidence(key, query.evidence, true);
+        } else {
+            return null;
+        }
+        return key.toString();
+    }
+
+    // Appends the observed variables in id order (with their outcomes unless 'names_only'):
+    private static void appendEvidence(StringBuilder key, int[] evidence, boolean names_only) {
+        for (int id = 0; id < evidence.length; id++) {
+            if (evidence[id] == -1)
+                continue;
+            key.append(id);
+            if (!names_only)
+                key.append('=').append(evidence[id]);
+            key.append(',');
+        }
+    }
+
+    /*
+     * A memoized answer, computed at most once by the computation of the query that created it.
+     */
+    private static class Entry implements Supplier<String> {
+        private final Supplier<String> computation;
+        private boolean done = false;
+        private String result;
+        private RuntimeException failure;
+
+        Entry(Supplier<String> computation) {
+            this.computation = computation;
+        }
+
+        @Override
+        public synchronized String get() {
+            if (!this.done) {
+                try {
+                    this.result = this.computation.get();
+                } catch (RuntimeException e) {
+                    this.failure = e;
+                }
+                this.done = true;
+            }
+
+            if (this.failure != null)
+                throw this.failure;
+            return this.result;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Reads an XMLBIF network file in a single streaming pass (StAX) instead of building a DOM.
+ * <TABLE> values are tokenized straight from the parser's character buffer into a double[], and parents are
+ * resolved through a name index once the whole file has been read, so loading is linear in the file size.
+ */
+public class StreamingNetworkParser {
+    // Statistics of the last load:
+    public long bytes_parsed;
+    public long load_time_nanos;
+    public int variable_count;
+    public int table_cells;
+
+    public List<BayesianNetworkElement> parse(String network_file) throws IOException, XMLStreamException {
+        long start = System.nanoTime();
+
+        CountingInputStream input = new CountingInputStream(new BufferedInputStream(new FileInputStream(network_file), 1 << 16));
+        List<BayesianNetworkElement> network_elements;
+        try {
+            network_elements = parse(input);
+        } finally {
+            input.close();
+        }
+
+        this.bytes_parsed = input.count;
+        this.load_time_nanos = System.nanoTime() - start;
+        return network_elements;
+    }
+
+    public List<BayesianNetworkElement> parse(InputStream input) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XMLStreamReader reader = factory.createXMLStreamReader(input);
+
+        List<BayesianNetworkElement> network_elements = new ArrayList<>();
+        Map<String, BayesianNetworkElement> name_index = new HashMap<>();
+        List<Definition> definitions = new ArrayList<>();
+
+        // State of the <VARIABLE> or <DEFINITION> currently being read:
+        String variable_name = null;
+        List<String> variable_outcomes = null;
+        Definition definition = null;
+        TableTokenizer table = null;
+
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String tag = reader.getLocalName();
+                    if (tag.equals("VARIABLE")) {
+                        variable_name = null;
+                        variable_outcomes = new ArrayList<>();
+                    } else if (tag.equals("DEFINITION")) {
+                        definition = new Definition();
+                    } else if (tag.equals("NAME") && variable_outcomes != null) {
+                        variable_name = reader.getElementText();
+                    } else if (tag.equals("OUTCOME") && variable_outcomes != null) {
+                        variable_outcomes.add(reader.getElementText());
+                    } else if (tag.equals("FOR") && definition != null) {
+                        definition.name = reader.getElementText();
+                    } else if (tag.equals("GIVEN") && definition != null) {
+                        definition.given.add(reader.getElementText());
+                    } else if (tag.equals("TABLE") && definition != null) {
+                        table = new TableTokenizer();
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    if (table != null)
+                        table.accept(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String tag = reader.getLocalName();
+                    if (tag.equals("VARIABLE") && variable_outcomes != null) {
+                        BayesianNetworkElement element = new BayesianNetworkElement(variable_name, variable_outcomes);
+                        network_elements.add(element);
+                        name_index.put(variable_name, element);
+                        variable_outcomes = null;
+                    } else if (tag.equals("TABLE") && table != null) {
+                        definition.table = table.finish();
+                        table = null;
+                    } else if (tag.equals("DEFINITION") && definition != null) {
+                        definitions.add(definition);
+                        definition = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Adding the data from every 'DEFINITION' to the corresponding 'VARIABLE':
+        int cells = 0;
+        for (Definition element_definition: definitions) {
+            BayesianNetworkElement element = name_index.get(element_definition.name);
+            if (element == null)
+                throw new XMLStreamException("DEFINITION for unknown variable '" + element_definition.name + "'");
+
+            element.given = new ArrayList<>(element_definition.given.size());
+            for (String parent_name: element_definition.given) {
+                BayesianNetworkElement parent = name_index.get(parent_name);
+                if (parent == null)
+                    throw new XMLStreamException("Unknown parent '" + parent_name + "' of variable '" + element_definition.name + "'");
+                element.given.add(parent);
+            }
+
+            element.table = element_definition.table;
+            cells += element.table.length;
+        }
+
+        this.variable_count = network_elements.size();
+        this.table_cells = cells;
+        return network_elements;
+    }
+
+    /*
+     * Returns a one-line summary of the last load.
+     */
+    public String report() {
+        return String.format("parsed %d variables, %d table cells, %d bytes in %.3f ms",
+                this.variable_count, this.table_cells, this.bytes_parsed, this.load_time_nanos / 1e6);
+    }
+
+    private static class Definition {
+        String name;
+        List<String> given = new ArrayList<>();
+        double[] table;
+    }
+
+    /*
+     * Splits whitespace separated numbers into a growing double[] as character chunks arrive.
+     * A number may be split across chunks, so its characters are kept in a small buffer until it ends.
+     */
+    private static class TableTokenizer {
+        private double[] values = new double[16];
+        private int size = 0;
+        private char[] token = new char[32];
+        private int token_length = 0;
+
+        void accept(char[] characters, int start, int length) {
+            for (int i = start; i < start + length; i++) {
+                char c = characters[i];
+                if (Character.isWhitespace(c)) {
+                    flush();
+                } else {
+                    if (token_length == token.length)
+                        token = Arrays.copyOf(token, token.length * 2);
+                    token[token_length++] = c;
+                }
+            }
+        }
+
+        double[] finish() {
+            flush();
+            return Arrays.copyOf(values, size);
+        }
+
+        private void flush() {
+            if (token_length == 0)
+                return;
+
+            if (size == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[size++] = parseDouble(token, token_length);
+            token_length = 0;
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /*
+     * Parses a plain decimal ("0.95", "-3", ".5") without creating a String.
+     * The digits form an exact integer below 2^53 and the divisor is an exact power of ten, so the single division
+     * is correctly rounded and gives the same double as Double.parseDouble. Anything else falls back to it.
+     */
+    static double parseDouble(char[] token, int length) {
+        int i = 0;
+        boolean negative = false;
+        if (token[0] == '-' || token[0] == '+') {
+            negative = token[0] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significant_digits = 0;
+        int fraction_digits = -1;
+        boolean seen_digit = false;
+        for (; i < length; i++) {
+            char c = token[i];
+            if (c >= '0' && c <= '9') {
+                seen_digit = true;
+                // Leading zeros do not count towards the precision limit:
+                if (mantissa != 0 || c != '0')
+                    significant_digits++;
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction_digits != -1)
+                    fraction_digits++;
+            } else if (c == '.' && fraction_digits == -1) {
+                fraction_digits = 0;
+            } else {
+                return Double.parseDouble(new String(token, 0, length));
+            }
+
+            if (significant_digits > 15 || fraction_digits >= POWERS_OF_TEN.length)
+                return Double.parseDouble(new String(token, 0, length));
+        }
+
+        if (!seen_digit)
+            return Double.parseDouble(new String(token, 0, length));
+
+        double value = fraction_digits > 0 ? mantissa / POWERS_OF_TEN[fraction_digits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /*
+     * Counts the bytes read from the underlying stream.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
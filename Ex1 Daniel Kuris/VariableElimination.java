@@ -1,129 +1,257 @@
 import java.util.*;
 
 public class VariableElimination {
-    public static double calculateCPT(List<BayesianNetworkElement> network, String request_left, String request_right, String eliminationOrder, MathematicalOperationsCounter counter) {
+    public static double calculateCPT(CompiledNetwork network, String request_left, String request_right, String eliminationOrder, MathematicalOperationsCounter counter) {
         // format: B=T|J=T,M=T
-        List<String> evidence = new ArrayList<>(Arrays.asList(request_right.split(",")));
-        List<String> usedVariables = parseUsedVariables(request_left, request_right);
-    
-        // Call the updated keepRelevantElements
-        List<BayesianNetworkElement> relevant_elements = keepRelevantElements(network, usedVariables);
+        return calculateCPT(network, QueryParser.parseProbability(network, request_left, request_right, eliminationOrder), counter);
+    }
 
+    /*
+     * Same as above for a query compiled by QueryParser (which also carries the per-query options).
+     */
+    public static double calculateCPT(CompiledNetwork network, CompiledQuery query, MathematicalOperationsCounter counter) {
+        // An observed query variable has a certain outcome (as in JunctionTree), with no factor to eliminate:
+        if (query.evidence[query.variable] != -1)
+            return query.evidence[query.variable] == query.outcome ? 1 : 0;
+
+        BayesianNetworkElement queryVariableElement = network.element(query.variable);
+        int queryOutcome = query.outcome;
+        int[] evidence_outcomes = query.evidence;
+        QueryOptions options = query.options;
+
+        // Prune barren and irrelevant nodes and absorbed evidence before building any factor
+        NetworkPruner.Result pruned = NetworkPruner.prune(network, queryVariableElement.id, evidence_outcomes);
+        counter.pruning = pruned;
+        FactorCache cache = network.factor_cache;
+        boolean log_space = options.arithmetic.equals(QueryOptions.ARITHMETIC_LOG);
+        FactorStorage storage = FactorStorage.of(options.storage);
+        List<Factor> factors = buildFactors(network, pruned.elements, evidence_outcomes, log_space, storage, cache, counter);
+
+        try {
+            List<Integer> free_variables = new ArrayList<>();
+            if (query.elimination_order == null) {
+                // No usable order was given, so plan one from the moral graph of the remaining factors:
+                EliminationOrderPlanner.Plan plan = EliminationOrderPlanner.plan(network, factors,
+                        eliminationCandidates(network, queryVariableElement, evidence_outcomes), query.heuristic);
+                for (int variable: plan.order) {
+                    free_variables.add(variable);
+                }
+            } else {
+                free_variables = givenOrder(network, factors, query);
+            }
 
-        String[] parts = request_left.split("=");
-        String queryVariable = parts[0].trim();
-        BayesianNetworkElement queryVariableElement = BayesianNetworkTools.searchElementByName(network, queryVariable);
+            if (options.schedule.equals(QueryOptions.SCHEDULE_PARALLEL)) {
+                // Independent branches of the elimination run concurrently, meeting at the query variable:
+                factors = EliminationTree.build(network, factors, free_variables, queryVariableElement.id).run(storage, cache, counter);
+            } else {
+                for (int free_variable: free_variables) {
+                    joinFactors(factors, free_variable, storage, cache, counter);
+                    eliminateVariable(factors, free_variable, storage, cache, counter);
+                    removeEmptyFactors(factors);
+                }
 
-        List<String> evidenceNames = new ArrayList<>();
-        for (String variable: evidence) {
-            String evidenceName = variable.split("=")[0].trim();
-            evidenceNames.add(evidenceName);
-        }
+                joinFactors(factors, queryVariableElement.id, storage, cache, counter);
+            }
 
+            double numerator = 0;
+            double denominator = 0;
 
+            Factor final_factor = filterFactorsByValue(factors, queryVariableElement.id, false).get(0);
 
-        // Filter relevant elements based on independence with query variable
-        List<Factor> factors = new ArrayList<>();
-        for (BayesianNetworkElement element: relevant_elements) {
-            factors.add(new Factor(relevant_elements, element, evidence));
-        }
-        removeEmptyFactors(factors);
+            if (log_space) {
+                // P(q) = exp(log f(q) - log sum f), which stays finite when every f underflows in linear space:
+                double log_denominator = Factor.logSumExp(final_factor.table, 0, 1, final_factor.cardinalities[0]);
+                counter.additions(final_factor.cardinalities[0] - 1);
+                return Math.exp(final_factor.value(queryOutcome) - log_denominator);
+            }
+
+            for (int outcome = 0; outcome < final_factor.cardinalities[0]; outcome++) {
+                double cpt_value = final_factor.value(outcome);
 
-        List<BayesianNetworkElement> independentVariables = new ArrayList<>();
-        for(BayesianNetworkElement element : relevant_elements)
-            if (queryVariableElement != null && !element.equals(queryVariableElement) &&
-                    BayesBall.isIndependent(element, queryVariableElement, evidenceNames, network))
-                independentVariables.add(element);
-
-        // Create a list to hold the factors to remove
-        List<Factor> factorsToRemove = new ArrayList<>();
-
-        // Iterate through each factor
-        for (Factor factor : factors) {
-            // Iterate through each variable in the current factor
-            for (BayesianNetworkElement variable : factor.factor_variables) {
-                // Check if the current variable is in the independentVariables list
-                if (independentVariables.contains(variable)) {
-                    // If found, mark this factor for removal and break out of the inner loop
-                    factorsToRemove.add(factor);
-                    break;
+                if (outcome == queryOutcome) {
+                    numerator = cpt_value;
                 }
+
+                denominator += cpt_value;
+                if (outcome != 0)
+                    counter.addition();
+            }
+
+            // numerator and denominator both carry the final factor's relative error, so their ratio carries about twice it:
+            counter.error_bound = (1 + final_factor.error_bound) / (1 - final_factor.error_bound) - 1;
+
+            return numerator/denominator;
+        } finally {
+            // Free whatever off-heap tables are left (the operands were released as soon as they were consumed)
+            for (Factor factor: factors) {
+                factor.release();
             }
+            counter.peak_off_heap_bytes = Math.max(counter.peak_off_heap_bytes, storage.peakOffHeapBytes());
         }
+    }
+
 
-        // Remove factors marked for removal
-        factors.removeAll(factorsToRemove);
-
-
-        evidence.add(request_left);
-    
-        List<BayesianNetworkElement> free_variables = BayesianNetworkTools.getUnusedElements(relevant_elements, evidence);
-        List<String> free_variable_names = new ArrayList<>();
-        for (BayesianNetworkElement variable: free_variables) {
-            free_variable_names.add(variable.name);
-        }
-    
-        // Ensure the elimination order respects the provided list
-        List<String> eliminationOrderList = Arrays.asList(eliminationOrder.split("-"));
-        free_variable_names.retainAll(eliminationOrderList);
-    
-        for (String free_variable: free_variable_names) {
-            joinFactors(relevant_elements, factors, free_variable, counter);
-            eliminateVariable(relevant_elements, factors, free_variable, counter);
-            removeEmptyFactors(factors);
-        }
-    
-        joinFactors(relevant_elements, factors, request_left.split("=")[0], counter);
-    
-        double numerator = 0;
-        double denominator = 0;
-    
-        Factor final_factor = filterFactorsByValue(factors, request_left.split("=")[0], false).get(0);
-    
-        for (String outcome: final_factor.factor_variables.get(0).outcomes) {
-            List<String> outcome_l = new ArrayList<>();
-            outcome_l.add(outcome);
-            double cpt_value = final_factor.getValue(outcome_l);
-    
-            if (Objects.equals(outcome, request_left.split("=")[1])) {
-                numerator = cpt_value;
+    /*
+     * Plans the elimination of a query without running it: the order calculateCPT would use (planned, or the given
+     * one) and the largest factor it would create, so callers can reject or reroute the query before paying for the
+     * elimination (see the 'max-factor' option in Ex1).
+     */
+    public static EliminationOrderPlanner.Plan planElimination(CompiledNetwork network, CompiledQuery query) {
+        BayesianNetworkElement queryVariableElement = network.element(query.variable);
+        int[] evidence_outcomes = query.evidence;
+        if (evidence_outcomes[query.variable] != -1)
+            return new EliminationOrderPlanner.Plan(new int[0], 0, query.heuristic);
+
+        NetworkPruner.Result pruned = NetworkPruner.prune(network, queryVariableElement.id, evidence_outcomes);
+        List<Factor> factors = buildFactors(network, pruned.elements, evidence_outcomes, false, FactorStorage.HEAP, null, new MathematicalOperationsCounter());
+        if (query.elimination_order == null)
+            return EliminationOrderPlanner.plan(network, factors, eliminationCandidates(network, queryVariableElement, evidence_outcomes), query.heuristic);
+
+        List<Integer> given = givenOrder(network, factors, query);
+        int[] order = new int[given.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = given.get(i);
+        }
+        return new EliminationOrderPlanner.Plan(order, EliminationOrderPlanner.predictMaxFactorSize(network, factors, order), null);
+    }
+
+    /*
+     * The variables of the query's given elimination order that have to be eliminated, in id order (variables left
+     * in no factor need no elimination).
+     */
+    private static List<Integer> givenOrder(CompiledNetwork network, List<Factor> factors, CompiledQuery query) {
+        boolean[] in_order = new boolean[network.size()];
+        for (int variable: query.elimination_order) {
+            in_order[variable] = true;
+        }
+        boolean[] mentioned = new boolean[network.size()];
+        for (Factor factor: factors) {
+            for (BayesianNetworkElement variable: factor.factor_variables) {
+                mentioned[variable.id] = true;
             }
-    
-            denominator += cpt_value;
-            if (final_factor.factor_variables.get(0).outcomes.indexOf(outcome) != 0)
-                counter.addition();
         }
-    
-        return numerator/denominator;
+
+        List<Integer> order = new ArrayList<>();
+        for (int id = 0; id < network.size(); id++) {
+            if (mentioned[id] && id != query.variable && query.evidence[id] == -1 && in_order[id])
+                order.add(id);
+        }
+        return order;
     }
 
+    /*
+     * Creates the (evidence reduced) factors of the elements kept by the pruning stage.
+     */
+    private static List<Factor> buildFactors(CompiledNetwork network, List<BayesianNetworkElement> elements, int[] evidence_outcomes, boolean log_space, FactorStorage storage, FactorCache cache, MathematicalOperationsCounter counter) {
+        List<Factor> factors = new ArrayList<>();
+        for (BayesianNetworkElement element: elements) {
+            factors.add(createFactor(network, element, evidence_outcomes, log_space, storage, cache, counter));
+        }
+        removeEmptyFactors(factors);
+
+        return factors;
+    }
+
+    /*
+     * An order is planned automatically when it is omitted or given as "auto" / "auto:<heuristic>".
+     */
+    public static boolean isAutomaticOrder(String eliminationOrder) {
+        String order = eliminationOrder.trim();
+        return order.isEmpty() || order.equals("auto") || order.startsWith("auto:");
+    }
+
+    /*
+     * Every variable except the query variable and the evidence may be eliminated.
+     */
+    private static boolean[] eliminationCandidates(CompiledNetwork network, BayesianNetworkElement queryVariableElement, int[] evidence_outcomes) {
+        boolean[] candidates = new boolean[network.size()];
+        for (int id = 0; id < network.size(); id++) {
+            candidates[id] = id != queryVariableElement.id && evidence_outcomes[id] == -1;
+        }
+        return candidates;
+    }
 
-    private static void eliminateVariable(List<BayesianNetworkElement> network, List<Factor> factors, String free_variable, MathematicalOperationsCounter counter) {
+    static void eliminateVariable(List<Factor> factors, int free_variable, FactorStorage storage, FactorCache cache, MathematicalOperationsCounter counter) {
         Factor relevant_factor = filterFactorsByValue(factors, free_variable, true).get(0);
 
-        Factor clean_factor = new Factor(network, relevant_factor, free_variable, counter);
+        Factor clean_factor = sumOut(relevant_factor, free_variable, storage, cache, counter);
+        relevant_factor.release();
 
         factors.add(clean_factor);
     }
 
-    public static void joinFactors(List<BayesianNetworkElement> network, List<Factor> factors, String free_variable, MathematicalOperationsCounter counter) {
+    public static void joinFactors(List<Factor> factors, int free_variable, FactorStorage storage, FactorCache cache, MathematicalOperationsCounter counter) {
         List<Factor> relevant_factors = filterFactorsByValue(factors, free_variable, true);
 
         while (relevant_factors.size() > 1) {
             Factor a = getSmallestFactor(relevant_factors, true);
             Factor b = getSmallestFactor(relevant_factors, true);
 
-            Factor joint = new Factor(network, a, b, counter);
+            Factor joint = join(a, b, storage, cache, counter);
+            a.release();
+            b.release();
             relevant_factors.add(joint);
         }
 
         factors.add(relevant_factors.get(0));
     }
 
-    public static List<Factor> filterFactorsByValue(List<Factor> factors, String variable, boolean remove) {
+    /*
+     * The reduced CPT factor of an element, taken from the cache when possible (a null cache disables caching).
+     */
+    private static Factor createFactor(CompiledNetwork network, BayesianNetworkElement element, int[] evidence_outcomes, boolean log_space, FactorStorage storage, FactorCache cache, MathematicalOperationsCounter counter) {
+        if (cache == null)
+            return reducedCpt(network, element, evidence_outcomes, log_space, storage, counter);
+
+        String key = FactorCache.cptKey(network, element, evidence_outcomes, log_space, storage);
+        Factor factor = cache.get(key, counter);
+        if (factor == null) {
+            factor = reducedCpt(network, element, evidence_outcomes, log_space, storage, counter);
+            factor.key = key;
+            cache.put(factor);
+        }
+        return factor;
+    }
+
+    private static Factor reducedCpt(CompiledNetwork network, BayesianNetworkElement element, int[] evidence_outcomes, boolean log_space, FactorStorage storage, MathematicalOperationsCounter counter) {
+        Factor factor = new Factor(network, element, evidence_outcomes, log_space, storage);
+        if (counter.profile != null)
+            counter.profile.factor(factor.size());
+        return factor;
+    }
+
+    private static Factor join(Factor a, Factor b, FactorStorage storage, FactorCache cache, MathematicalOperationsCounter counter) {
+        if (cache == null)
+            return new Factor(a, b, storage, counter);
+
+        String key = FactorCache.joinKey(a, b);
+        Factor factor = cache.get(key, counter);
+        if (factor == null) {
+            factor = new Factor(a, b, storage, counter);
+            factor.key = key;
+            cache.put(factor);
+        }
+        return factor;
+    }
+
+    private static Factor sumOut(Factor a, int variable, FactorStorage storage, FactorCache cache, MathematicalOperationsCounter counter) {
+        if (cache == null)
+            return new Factor(a, variable, storage, counter);
+
+        String key = FactorCache.sumOutKey(a, variable);
+        Factor factor = cache.get(key, counter);
+        if (factor == null) {
+            factor = new Factor(a, variable, storage, counter);
+            factor.key = key;
+            cache.put(factor);
+        }
+        return factor;
+    }
+
+    public static List<Factor> filterFactorsByValue(List<Factor> factors, int variable, boolean remove) {
         List<Factor> relevant_factors = new ArrayList<>();
         for (Factor factor: factors) {
-            if (factor.getVariables().contains(variable)) {
+            if (factor.contains(variable)) {
                 relevant_factors.add(factor);
             }
         }
@@ -143,7 +271,7 @@ public class VariableElimination {
     public static Factor getSmallestFactor(List<Factor> factors, boolean remove) {
         Factor smallest = factors.get(0);
         for (Factor factor: factors) {
-            if (factor.values.size() < smallest.values.size())
+            if (factor.size() < smallest.size())
                 smallest = factor;
         }
 
@@ -157,67 +285,13 @@ public class VariableElimination {
         List<Factor> factors_to_be_removed = new ArrayList<>();
 
         for (Factor factor: factors) {
-            if (factor.values.size() <= 1)
+            if (factor.size() <= 1)
                 factors_to_be_removed.add(factor);
         }
 
         for (Factor factor: factors_to_be_removed) {
             factors.remove(factor);
+            factor.release();
         }
     }
-
-    /*
-     * Keeps only the elements that are relevant to the query.
-     * Eliminating variables further using Bayes Ball algorithm
-     */
-    /*
-     * Keeps only the elements that are relevant to the query.
-     */
-    public static List<BayesianNetworkElement> keepRelevantElements(List<BayesianNetworkElement> network, List<String> used_variables) {
-        List<BayesianNetworkElement> relevant_elements = new ArrayList<>();
-        for (String variable: used_variables) {
-            relevant_elements.add( BayesianNetworkTools.searchElementByName(network, variable) );
-        }
-
-        addAllParents(relevant_elements);
-
-        Collections.sort(relevant_elements, new Comparator<BayesianNetworkElement>() {
-            public int compare(BayesianNetworkElement left, BayesianNetworkElement right) {
-                return Integer.compare(network.indexOf(left), network.indexOf(right));
-            }
-        });
-
-        return relevant_elements;
-    }
-    
-    
-
-    /*
-     * Adds the parents of all elements in the list recursively.
-     */
-    public static void addAllParents(List<BayesianNetworkElement> relevant_elements) {
-        for (BayesianNetworkElement element: relevant_elements) {
-            for (BayesianNetworkElement parent: element.given) {
-                if (!relevant_elements.contains(parent)) {
-                    relevant_elements.add(parent);
-                    addAllParents(relevant_elements);
-                    return;
-                }
-            }
-        }
-    }
-
-    /*
-     * Returns the names of all variables used in the query.
-     */
-    public static List<String> parseUsedVariables(String request_left, String request_right) {
-        List<String> variables = new ArrayList<>();
-
-        for (String variable: request_right.split(",")) {
-            variables.add(variable.split("=")[0]);
-        }
-        variables.add(request_left.split("=")[0]);
-
-        return variables;
-    }
 }
@@ -0,0 +1,63 @@
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+ * Bayes Ball on generated chains, where the answer is known: without evidence every node is d-connected to the root,
+ * and an observed node blocks everything after it.
+ */
+class BayesBallTest {
+    @TempDir
+    Path directory;
+
+    /*
+     * The per-thread traversal state is reused across networks: a small chain and then a larger one whose node bits
+     * fit in the same number of words, on the same thread, must both be answered in full.
+     */
+    @Test
+    void reusesTraversalStateAcrossNetworkSizes() throws Exception {
+        for (int nodes: new int[]{20, 40}) {
+            CompiledNetwork network = chain(nodes);
+            int[] evidence = new int[network.size()];
+            Arrays.fill(evidence, -1);
+
+            boolean[] connected = BayesBall.dConnected(network, 0, evidence);
+            for (int node = 0; node < network.size(); node++) {
+                assertTrue(connected[node], network.names[node] + " is d-connected to the root of a " + nodes + "-node chain");
+            }
+        }
+    }
+
+    @Test
+    void observedNodeBlocksTheChain() throws Exception {
+        CompiledNetwork network = chain(20);
+        int[] evidence = new int[network.size()];
+        Arrays.fill(evidence, -1);
+        evidence[10] = 0;
+
+        boolean[] connected = BayesBall.dConnected(network, 0, evidence);
+        for (int node = 1; node < 10; node++) {
+            assertTrue(connected[node], network.names[node] + " is before the observed node");
+        }
+        for (int node = 11; node < network.size(); node++) {
+            assertFalse(connected[node], network.names[node] + " is after the observed node");
+        }
+    }
+
+    private CompiledNetwork chain(int nodes) throws Exception {
+        File file = directory.resolve("chain" + nodes + ".xml").toFile();
+        NetworkGenerator generator = new NetworkGenerator();
+        generator.nodes = nodes;
+        generator.topology = NetworkGenerator.Topology.CHAIN;
+        generator.seed = 20240501L;
+        generator.generate();
+        generator.writeNetwork(file.getPath());
+        return new CompiledNetwork(new StreamingNetworkParser().parse(file.getPath()));
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.DoubleSupplier;
+
+/*
+ * The operations measured by the JMH benchmarks (package 'benchmarks'), built for one network file.
+ * JMH refuses benchmark classes in the default package, and classes in a named package cannot refer to the engine
+ * (which lives in the default package), so the benchmarks look these factories up reflectively once per trial and
+ * then call the returned operations through DoubleSupplier, without reflection in the measured code.
+ * Networks and queries come from a fixed seed, so every fork and every run measures the same work.
+ */
+public class BenchmarkCases {
+    private static final long SEED = 20240501L;
+    private static final int QUERY_COUNT = 32;
+
+    // Largest joint distribution the full-joint enumeration is benchmarked on:
+    private static final long MAX_ENUMERATION_SIZE = 1L << 20;
+
+    // Cells of the join measured by the 'wide' factor benchmarks:
+    private static final long WIDE_FACTOR_SIZE = 1L << 14;
+
+    /*
+     * Copies the baseline network (alarm_net.xml, packaged with the benchmarks) to a temporary file.
+     */
+    public static String baselineNetwork() throws IOException {
+        File file = File.createTempFile("alarm_net", ".xml");
+        file.deleteOnExit();
+        try (InputStream input = BenchmarkCases.class.getResourceAsStream("/alarm_net.xml")) {
+            if (input == null)
+                throw new IOException("alarm_net.xml is not packaged with the benchmarks");
+            Files.copy(input, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file.getPath();
+    }
+
+    /*
+     * Writes a generated layered network to a temporary file. Layers of 2 * max_parents nodes keep the treewidth
+     * bounded as the node count grows.
+     */
+    public static String generatedNetwork(int nodes, int max_parents, int cardinality) throws IOException {
+        File file = File.createTempFile(String.format("n%d-p%d-k%d-", nodes, max_parents, cardinality), ".xml");
+        file.deleteOnExit();
+
+        NetworkGenerator generator = new NetworkGenerator();
+        generator.nodes = nodes;
+        generator.topology = NetworkGenerator.Topology.LAYERED;
+        generator.max_parents = max_parents;
+        generator.layer_width = 2 * max_parents;
+        generator.min_cardinality = cardinality;
+        generator.max_cardinality = cardinality;
+        generator.seed = SEED;
+        generator.generate();
+        generator.writeNetwork(file.getPath());
+        return file.getPath();
+    }
+
+    /*
+     * The operations on one network: parsing, the factor kernels on CPTs, VE, Bayes Ball and (when the joint is
+     * small enough) the full-joint enumeration, by name.
+     */
+    public static Map<String, DoubleSupplier> cases(String file) throws Exception {
+        Map<String, DoubleSupplier> cases = new LinkedHashMap<>();
+        cases.put("parse.dom", () -> {
+            try {
+                return BayesianNetworkTools.parseNetwork(file).size();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        cases.put("parse.stream", () -> {
+            try {
+                return new StreamingNetworkParser().parse(file).size();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        CompiledNetwork network = new CompiledNetwork(new StreamingNetworkParser().parse(file));
+
+        // The largest CPT and the CPT of its first parent, so the join multiplies two overlapping factors:
+        BayesianNetworkElement child = network.elements.get(0);
+        for (BayesianNetworkElement element: network.elements) {
+            if (network.parents[element.id].length > 0 && network.tables[element.id].capacity() > network.tables[child.id].capacity())
+                child = element;
+        }
+        if (network.parents[child.id].length > 0) {
+            int[] evidence = new int[network.size()];
+            Arrays.fill(evidence, -1);
+            Factor a = new Factor(network, child, evidence);
+            Factor b = new Factor(network, network.element(network.parents[child.id][0]), evidence);
+            Factor joined = new Factor(a, b, new MathematicalOperationsCounter());
+            int variable = network.parents[child.id][0];
+
+            cases.put("factor.join", () -> new Factor(a, b, new MathematicalOperationsCounter()).value(0));
+            cases.put("factor.eliminate", () -> new Factor(joined, variable, new MathematicalOperationsCounter()).value(0));
+        }
+
+        // Random queries with one to three observed variables, answered with a planned order and no caches:
+        String[][] queries = generateQueries(network, SEED);
+        int[] next = {0};
+        cases.put("ve.calculateCPT", () -> {
+            String[] query = queries[next[0]++ % queries.length];
+            return VariableElimination.calculateCPT(network, query[0], query[1], "", new MathematicalOperationsCounter());
+        });
+
+        List<String[]> pairs = generatePairs(network, SEED);
+        cases.put("bayesball.isIndependent", () -> {
+            String[] pair = pairs.get(next[0]++ % pairs.size());
+            List<String> evidence = Arrays.asList(pair).subList(2, pair.length);
+            return BayesBall.isIndependent(network.element(pair[0]), network.element(pair[1]), evidence, network) ? 1 : 0;
+        });
+
+        long joint_size = 1;
+        for (int cardinality: network.cardinalities) {
+            joint_size *= cardinality;
+            if (joint_size > MAX_ENUMERATION_SIZE)
+                break;
+        }
+        if (joint_size <= MAX_ENUMERATION_SIZE) {
+            cases.put("enumeration.calculateCPT", () -> {
+                String[] query = queries[next[0]++ % queries.length];
+                return BayesianNetworkTools.calculateCPT(network, query[0], query[1], new MathematicalOperationsCounter());
+            });
+        }
+
+        return cases;
+    }
+
+    /*
+     * Join and sum-out of two overlapping factors over the first variables of the network, joined into about
+     * WIDE_FACTOR_SIZE cells so the kernels dominate rather than the setup of a factor. Named "join.<storage>" and
+     * "eliminate.<storage>" for the storages "double" (heap), "float" and "offheap".
+     */
+    public static Map<String, DoubleSupplier> kernelCases(String file) throws Exception {
+        CompiledNetwork network = new CompiledNetwork(new StreamingNetworkParser().parse(file));
+        List<BayesianNetworkElement> scope = new ArrayList<>();
+        long wide_size = 1;
+        for (int id = 0; id < network.size() && wide_size < WIDE_FACTOR_SIZE; id++) {
+            scope.add(network.elements.get(id));
+            wide_size *= network.cardinalities[id];
+        }
+        if (scope.size() < 3)
+            throw new IllegalArgumentException(file + " has too few variables for the kernel benchmarks");
+
+        Map<String, FactorStorage> storages = new LinkedHashMap<>();
+        storages.put(FactorStorage.DOUBLE, FactorStorage.HEAP);
+        storages.put(FactorStorage.FLOAT, new FactorStorage(true, 0));
+        storages.put("offheap", new FactorStorage(false, 1));
+
+        Map<String, DoubleSupplier> cases = new LinkedHashMap<>();
+        Factor unit = new Factor(new ArrayList<>());
+        for (Map.Entry<String, FactorStorage> storage: storages.entrySet()) {
+            // The operands are copied into the storage by a join with the one-cell unit factor:
+            FactorStorage tables = storage.getValue();
+            Factor a = new Factor(new Factor(scope.subList(0, 2 * scope.size() / 3)), unit, tables, new MathematicalOperationsCounter());
+            Factor b = new Factor(new Factor(scope.subList(scope.size() / 3, scope.size())), unit, tables, new MathematicalOperationsCounter());
+            Factor joined = new Factor(a, b, tables, new MathematicalOperationsCounter());
+            int variable = scope.get(scope.size() / 2).id;
+
+            cases.put("join." + storage.getKey(), () -> {
+                Factor result = new Factor(a, b, tables, new MathematicalOperationsCounter());
+                double value = result.value(0);
+                result.release();
+                return value;
+            });
+            cases.put("eliminate." + storage.getKey(), () -> {
+                Factor result = new Factor(joined, variable, tables, new MathematicalOperationsCounter());
+                double value = result.value(0);
+                result.release();
+                return value;
+            });
+        }
+        return cases;
+    }
+
+    /*
+     * Returns {request_left, request_right} pairs: a random variable given up to three other observed variables.
+     */
+    private static String[][] generateQueries(CompiledNetwork network, long seed) {
+        Random random = new Random(seed);
+        String[][] queries = new String[QUERY_COUNT][];
+
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            int query = random.nextInt(network.size());
+            queries[q] = new String[]{network.names[query] + "=" + network.outcomes[query][random.nextInt(network.cardinalities[query])], ""};
+
+            List<String> evidence = new ArrayList<>();
+            for (int e: distinctVariables(network, random, 1 + random.nextInt(3), query)) {
+                evidence.add(network.names[e] + "=" + network.outcomes[e][random.nextInt(network.cardinalities[e])]);
+            }
+            queries[q][1] = String.join(",", evidence);
+        }
+
+        return queries;
+    }
+
+    /*
+     * Returns {source, destination, evidence...} independence queries with up to three observed variables.
+     */
+    private static List<String[]> generatePairs(CompiledNetwork network, long seed) {
+        Random random = new Random(seed);
+        List<String[]> pairs = new ArrayList<>();
+
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            int[] variables = distinctVariables(network, random, 2 + random.nextInt(4), -1);
+            String[] pair = new String[variables.length];
+            for (int i = 0; i < variables.length; i++) {
+                pair[i] = network.names[variables[i]];
+            }
+            pairs.add(pair);
+        }
+
+        return pairs;
+    }
+
+    private static int[] distinctVariables(CompiledNetwork network, Random random, int count, int excluded) {
+        count = Math.min(count, network.size() - (excluded == -1 ? 0 : 1));
+        int[] variables = new int[count];
+        boolean[] used = new boolean[network.size()];
+        if (excluded != -1)
+            used[excluded] = true;
+
+        for (int i = 0; i < count; i++) {
+            int variable;
+            do {
+                variable = random.nextInt(network.size());
+            } while (used[variable]);
+            used[variable] = true;
+            variables[i] = variable;
+        }
+        return variables;
+    }
+}
@@ -0,0 +1,11 @@
+package benchmarks;
+
+/*
+ * The baseline: the inference hot paths on alarm_net.xml.
+ */
+public class AlarmBenchmarks extends InferenceBenchmarks {
+    @Override
+    protected String networkFile() {
+        return Workloads.baselineNetwork();
+    }
+}
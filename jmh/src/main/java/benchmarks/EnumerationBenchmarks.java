@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The full-joint enumeration against VE on the same queries, on networks small enough to enumerate (a joint
+ * distribution of at most 2^20 cells).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(3)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EnumerationBenchmarks {
+    @Param({"12", "16", "20"})
+    public int nodes;
+
+    @Param({"2"})
+    public int max_parents;
+
+    @Param({"2"})
+    public int cardinality;
+
+    private DoubleSupplier enumeration;
+    private DoubleSupplier variable_elimination;
+
+    @Setup
+    public void setUp() {
+        Map<String, DoubleSupplier> cases = Workloads.cases(Workloads.generatedNetwork(nodes, max_parents, cardinality));
+        enumeration = Workloads.operation(cases, "enumeration.calculateCPT");
+        variable_elimination = Workloads.operation(cases, "ve.calculateCPT");
+    }
+
+    @Benchmark
+    public double enumeration() {
+        return enumeration.getAsDouble();
+    }
+
+    @Benchmark
+    public double variableElimination() {
+        return variable_elimination.getAsDouble();
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The factor join and sum-out kernels on operands of about 2^14 cells, for each table storage. Before measuring, the
+ * setup runs the kernels of every storage, so the table accessors are as polymorphic as in a process that answers
+ * queries of every storage and the heap fast path is measured against that profile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(3)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FactorKernelBenchmarks {
+    private static final int PROFILE_CALLS = 2000;
+
+    @Param({"double", "float", "offheap"})
+    public String storage;
+
+    @Param({"2", "3"})
+    public int cardinality;
+
+    private DoubleSupplier join;
+    private DoubleSupplier eliminate;
+
+    @Setup
+    public void setUp() {
+        Map<String, DoubleSupplier> cases = Workloads.kernelCases(Workloads.generatedNetwork(100, 3, cardinality));
+        for (DoubleSupplier operation: cases.values()) {
+            for (int i = 0; i < PROFILE_CALLS; i++) {
+                operation.getAsDouble();
+            }
+        }
+        join = Workloads.operation(cases, "join." + storage);
+        eliminate = Workloads.operation(cases, "eliminate." + storage);
+    }
+
+    @Benchmark
+    public double join() {
+        return join.getAsDouble();
+    }
+
+    @Benchmark
+    public double eliminate() {
+        return eliminate.getAsDouble();
+    }
+}
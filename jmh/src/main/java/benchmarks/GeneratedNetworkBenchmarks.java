@@ -0,0 +1,23 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+
+/*
+ * The inference hot paths on generated layered networks of varying size, in-degree (which bounds the treewidth) and
+ * cardinality. Networks come from a fixed seed, so every fork and every run measures the same network.
+ */
+public class GeneratedNetworkBenchmarks extends InferenceBenchmarks {
+    @Param({"100", "500", "2000"})
+    public int nodes;
+
+    @Param({"2", "4"})
+    public int max_parents;
+
+    @Param({"2", "3"})
+    public int cardinality;
+
+    @Override
+    protected String networkFile() {
+        return Workloads.generatedNetwork(nodes, max_parents, cardinality);
+    }
+}
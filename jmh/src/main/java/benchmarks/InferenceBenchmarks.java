@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The inference hot paths on one network: parsing, a CPT join and sum-out, VE and Bayes Ball. Subclasses choose the
+ * network. Every operation returns its result, which JMH consumes, so the JIT cannot drop the computation; each
+ * benchmark runs in three forked JVMs, and JMH reports the score with its error over all forks and iterations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(3)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public abstract class InferenceBenchmarks {
+    private DoubleSupplier parse_dom;
+    private DoubleSupplier parse_stream;
+    private DoubleSupplier factor_join;
+    private DoubleSupplier factor_eliminate;
+    private DoubleSupplier variable_elimination;
+    private DoubleSupplier bayes_ball;
+
+    protected Map<String, DoubleSupplier> cases;
+
+    /*
+     * Returns the path of the network file to measure on.
+     */
+    protected abstract String networkFile();
+
+    @Setup
+    public void setUp() {
+        cases = Workloads.cases(networkFile());
+        parse_dom = Workloads.operation(cases, "parse.dom");
+        parse_stream = Workloads.operation(cases, "parse.stream");
+        factor_join = Workloads.operation(cases, "factor.join");
+        factor_eliminate = Workloads.operation(cases, "factor.eliminate");
+        variable_elimination = Workloads.operation(cases, "ve.calculateCPT");
+        bayes_ball = Workloads.operation(cases, "bayesball.isIndependent");
+    }
+
+    @Benchmark
+    public double parseDom() {
+        return parse_dom.getAsDouble();
+    }
+
+    @Benchmark
+    public double parseStream() {
+        return parse_stream.getAsDouble();
+    }
+
+    @Benchmark
+    public double factorJoin() {
+        return factor_join.getAsDouble();
+    }
+
+    @Benchmark
+    public double factorEliminate() {
+        return factor_eliminate.getAsDouble();
+    }
+
+    @Benchmark
+    public double variableElimination() {
+        return variable_elimination.getAsDouble();
+    }
+
+    @Benchmark
+    public double bayesBall() {
+        return bayes_ball.getAsDouble();
+    }
+}
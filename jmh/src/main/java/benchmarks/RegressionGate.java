@@ -0,0 +1,99 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Compares two JMH result files written with '-rf csv' and exits with status 1 on a regression:
+ *   java -cp benchmarks.jar benchmarks.RegressionGate previous.csv current.csv [tolerance, default 0.10]
+ * A benchmark (with its parameters) regressed when its score is worse than the previous one by more than the
+ * tolerance and the two confidence intervals JMH reports (over all forks) do not overlap, so noise between forks
+ * alone does not fail the gate. Scores are average times, so higher is worse.
+ */
+public class RegressionGate {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: RegressionGate previous.csv current.csv [tolerance]");
+            System.exit(2);
+        }
+        Map<String, double[]> previous = readResults(args[0]);
+        Map<String, double[]> current = readResults(args[1]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+
+        boolean regressed = false;
+        System.out.printf("%-72s %14s %14s %8s%n", "benchmark", "previous", "current", "change");
+        for (Map.Entry<String, double[]> result: current.entrySet()) {
+            double[] before = previous.get(result.getKey());
+            if (before == null)
+                continue;
+
+            double[] after = result.getValue();
+            double change = after[0] / before[0] - 1;
+            boolean worse = change > tolerance && after[0] - after[1] > before[0] + before[1];
+            System.out.printf(Locale.ROOT, "%-72s %14.3f %14.3f %+7.1f%%%s%n", result.getKey(), before[0], after[0],
+                    change * 100, worse ? "  REGRESSION" : "");
+            regressed |= worse;
+        }
+
+        if (regressed)
+            System.exit(1);
+    }
+
+    /*
+     * Reads {score, score error} by benchmark name and parameter values.
+     */
+    private static Map<String, double[]> readResults(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        Map<String, double[]> results = new LinkedHashMap<>();
+        if (lines.isEmpty())
+            return results;
+
+        List<String> header = fields(lines.get(0));
+        int score = header.indexOf("Score");
+        int error = header.indexOf("Score Error (99.9%)");
+        if (score == -1 || error == -1)
+            throw new IOException(file + " is not a JMH csv result file");
+
+        for (String line: lines.subList(1, lines.size())) {
+            List<String> row = fields(line);
+            if (row.size() != header.size())
+                continue;
+
+            StringBuilder name = new StringBuilder(row.get(0));
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Param: ") && !row.get(i).isEmpty())
+                    name.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+            }
+            double score_error = row.get(error).equals("NaN") ? 0 : Double.parseDouble(row.get(error));
+            results.put(name.toString(), new double[]{Double.parseDouble(row.get(score)), score_error});
+        }
+        return results;
+    }
+
+    /*
+     * Splits one csv line, removing the quotes JMH puts around every text field.
+     */
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/*
+ * Access to the operations built by BenchmarkCases. The engine and BenchmarkCases live in the default package, which
+ * a named package cannot import, so they are called reflectively; this happens only in @Setup, never in a measured
+ * method.
+ */
+final class Workloads {
+    private Workloads() {
+    }
+
+    static String baselineNetwork() {
+        return (String) call("baselineNetwork", new Class<?>[0]);
+    }
+
+    static String generatedNetwork(int nodes, int max_parents, int cardinality) {
+        return (String) call("generatedNetwork", new Class<?>[]{int.class, int.class, int.class}, nodes, max_parents, cardinality);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, DoubleSupplier> cases(String file) {
+        return (Map<String, DoubleSupplier>) call("cases", new Class<?>[]{String.class}, file);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, DoubleSupplier> kernelCases(String file) {
+        return (Map<String, DoubleSupplier>) call("kernelCases", new Class<?>[]{String.class}, file);
+    }
+
+    /*
+     * Returns the named operation, failing the trial when the network does not provide it.
+     */
+    static DoubleSupplier operation(Map<String, DoubleSupplier> cases, String name) {
+        DoubleSupplier operation = cases.get(name);
+        if (operation == null)
+            throw new IllegalStateException("No '" + name + "' benchmark for this network, only " + cases.keySet());
+        return operation;
+    }
+
+    private static Object call(String method, Class<?>[] types, Object... args) {
+        try {
+            return Class.forName("BenchmarkCases").getMethod(method, types).invoke(null, args);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("BenchmarkCases." + method + " failed", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkCases." + method + " is not available", e);
+        }
+    }
+}